@@ -0,0 +1,249 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import static com.sliva.plotter.IOUtils.KB;
+import static com.sliva.plotter.IOUtils.MB;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Host-wide admission of plot processes. Each process commits its memory
+ * buffer size and number of threads. A new process is admitted when the sum of
+ * committed resources stays within the configured host limits, the host has
+ * enough available physical memory and the live CPU load not caused by
+ * admitted processes leaves room for the process threads within the threads
+ * limit. Waiting processes are admitted in arrival order.
+ *
+ * @author Sliva Co
+ */
+public class AdmissionController {
+
+    private static final Duration RESAMPLE_PERIOD = Duration.ofSeconds(30);
+    private static final File MEMINFO_FILE = new File("/proc/meminfo");
+
+    private final IntSupplier maxMemory;
+    private final IntSupplier maxThreads;
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    private final Deque<Ticket> waiting = new ArrayDeque<>();
+    private long committedMemory;
+    private int committedThreads;
+    private volatile Sample lastSample = new Sample(-1, -1);
+
+    /**
+     * Create admission controller. Limits are read on every check, so config
+     * changes apply to waiting processes.
+     *
+     * @param maxMemory supplier of host memory limit, MiB. Zero or negative
+     * value means unlimited
+     * @param maxThreads supplier of host threads limit. Zero or negative value
+     * means unlimited
+     */
+    public AdmissionController(IntSupplier maxMemory, IntSupplier maxThreads) {
+        this.maxMemory = maxMemory;
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Wait until resources are available and commit them.
+     *
+     * @param name Name used for logging
+     * @param memory Process memory, MiB
+     * @param threads Process threads
+     * @param cancelled checked on every wake up, the wait is abandoned when it
+     * returns true
+     * @return Ticket to release resources with, or null if cancelled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Ticket acquire(String name, int memory, int threads, BooleanSupplier cancelled) throws InterruptedException {
+        Ticket ticket = new Ticket(name, memory, threads);
+        synchronized (this) {
+            waiting.addLast(ticket);
+        }
+        try {
+            boolean logged = false;
+            while (true) {
+                //the host is sampled without holding the monitor, as the OS calls may be slow
+                Sample sample = sample();
+                synchronized (this) {
+                    if (waiting.peekFirst() == ticket && fits(ticket, sample)) {
+                        committedMemory += memory;
+                        committedThreads += threads;
+                        ticket.acquired = true;
+                        return ticket;
+                    }
+                    if (cancelled.getAsBoolean()) {
+                        return null;
+                    }
+                    if (!logged) {
+                        log(name + " Waiting for host resources. Requested: memory=" + memory + ", threads=" + threads + ". " + this);
+                        logged = true;
+                    }
+                    wait(RESAMPLE_PERIOD.toMillis());
+                }
+            }
+        } finally {
+            synchronized (this) {
+                waiting.remove(ticket);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Re-check waiting processes, i.e. when limits have changed.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public synchronized long getCommittedMemory() {
+        return committedMemory;
+    }
+
+    public synchronized int getCommittedThreads() {
+        return committedThreads;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private boolean fits(Ticket ticket, Sample sample) {
+        int memoryLimit = maxMemory.getAsInt();
+        int threadsLimit = maxThreads.getAsInt();
+        if (committedMemory == 0 && committedThreads == 0) {
+            //always admit single process, so a misconfigured limit doesn't stop plotting
+            return true;
+        }
+        if (memoryLimit > 0 && (committedMemory + ticket.memory > memoryLimit
+                || sample.availableMemory >= 0 && sample.availableMemory < (long) ticket.memory * MB)) {
+            return false;
+        }
+        if (threadsLimit <= 0) {
+            return true;
+        }
+        //admitted processes are counted by their committed threads, so only the load of other workloads is added
+        double otherBusyCpus = Math.max(0, sample.busyCpus - committedThreads);
+        return committedThreads + otherBusyCpus + ticket.threads <= threadsLimit;
+    }
+
+    private Sample sample() {
+        Sample sample = new Sample(getAvailableMemory(), getBusyCpus());
+        lastSample = sample;
+        return sample;
+    }
+
+    /**
+     * Get number of busy CPUs: recent CPU load of the system times number of
+     * CPUs, or where it is not available the system load average. The load
+     * average also counts threads waiting for I/O on Linux, so it is only the
+     * fallback.
+     *
+     * @return Busy CPUs or negative value if not available
+     */
+    @SuppressWarnings("deprecation")
+    private double getBusyCpus() {
+        double cpuLoad = osBean instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) osBean).getSystemCpuLoad() : -1;
+        return cpuLoad >= 0 ? cpuLoad * osBean.getAvailableProcessors() : osBean.getSystemLoadAverage();
+    }
+
+    /**
+     * Get physical memory available for new processes without swapping. On
+     * Linux it is MemAvailable, as free memory excludes the page cache that
+     * plot copies fill up. Elsewhere free physical memory of the OS, which on
+     * Windows includes standby cache.
+     *
+     * @return Available memory in bytes or negative value if not available
+     */
+    @SuppressWarnings("deprecation")
+    private long getAvailableMemory() {
+        if (MEMINFO_FILE.canRead()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(MEMINFO_FILE))) {
+                for (String s = in.readLine(); s != null; s = in.readLine()) {
+                    if (s.startsWith("MemAvailable:")) {
+                        return Long.parseLong(s.replaceAll("\\D", "")) * KB;
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                //fall back to free memory
+            }
+        }
+        return osBean instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize()
+                : -1;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.acquired) {
+            ticket.acquired = false;
+            committedMemory -= ticket.memory;
+            committedThreads -= ticket.threads;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Committed: memory=" + committedMemory + "/" + maxMemory.getAsInt()
+                + ", threads=" + committedThreads + "/" + maxThreads.getAsInt()
+                + ", available memory=" + lastSample.availableMemory / MB + ", busy CPUs=" + String.format("%.1f", lastSample.busyCpus) + ", waiting=" + waiting.size();
+    }
+
+    private static void log(String s) {
+        LoggerUtil.log("AdmissionController: " + s);
+    }
+
+    /**
+     * Host resources sampled for one admission check.
+     */
+    private static class Sample {
+
+        private final long availableMemory;
+        private final double busyCpus;
+
+        private Sample(long availableMemory, double busyCpus) {
+            this.availableMemory = availableMemory;
+            this.busyCpus = busyCpus;
+        }
+    }
+
+    /**
+     * Committed resources of an admitted process.
+     */
+    public class Ticket {
+
+        private final String name;
+        private final int memory;
+        private final int threads;
+        private boolean acquired;
+
+        private Ticket(String name, int memory, int threads) {
+            this.name = name;
+            this.memory = memory;
+            this.threads = threads;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Release committed resources. Subsequent calls do nothing.
+         */
+        public void release() {
+            AdmissionController.this.release(this);
+        }
+    }
+}
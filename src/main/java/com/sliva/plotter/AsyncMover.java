@@ -3,18 +3,36 @@
  */
 package com.sliva.plotter;
 
+import static com.sliva.plotter.AsyncUtil.MOVERS;
+import static com.sliva.plotter.AsyncUtil.SCHEDULER;
+import static com.sliva.plotter.IOUtils.GB;
 import static com.sliva.plotter.IOUtils.MB;
+import static com.sliva.plotter.IOUtils.fixVolumePathForWindows;
 import static com.sliva.plotter.LoggerUtil.log;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -22,91 +40,413 @@ import java.util.function.Supplier;
  */
 public class AsyncMover {
 
-    private static final int COPY_BUFFER_SIZE = 10 * MB;
-    private final Set<MovingProcess> movingProcesses = new HashSet<>();
-    private final Set<File> inUseMoveDest = new HashSet<>();
+    private static final int COPY_BUFFER_SIZE = 8 * MB;
+    private static final int MAX_COPY_BUFFERS = 16;
+    private static final int MAX_IDLE_COPY_BUFFERS = 4;
+    private static final int NETWORK_DEST_MOVES = 2;
+    private static final Duration DISPATCH_PERIOD = Duration.ofMinutes(1);
+    private static final int MAX_VALIDATION_RETRIES = 3;
+    private static final Duration VALIDATION_RETRY_DELAY = Duration.ofMinutes(1);
+    private final Config config;
+    private final MoveJournal journal;
+    private final VolumeStateCache volumeStateCache;
+    private final SpaceReservationLedger spaceLedger;
+    private final Runnable onMoveFinished;
+    private final Set<MovingProcess> movingProcesses = ConcurrentHashMap.newKeySet();
+    private final Map<File, Set<MovingProcess>> movingProcessesByDestination = new ConcurrentHashMap<>();
+    private final AtomicInteger noDestinationCount = new AtomicInteger();
+    private final Map<File, Integer> inUseMoveDest = new ConcurrentHashMap<>();
+    private final Map<File, Integer> inUseMoveSource = new ConcurrentHashMap<>();
+    private final AtomicInteger inUseMoveCount = new AtomicInteger();
+    //owned by the scheduler thread
+    private final List<MovingProcess> pendingMoves = new ArrayList<>();
+    private final RateLimiter globalRateLimiter;
+    private final BufferPool bufferPool = new BufferPool(COPY_BUFFER_SIZE, MAX_COPY_BUFFERS, MAX_IDLE_COPY_BUFFERS);
+    private final Map<String, RateLimiter> readRateLimiters = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> writeRateLimiters = new ConcurrentHashMap<>();
+    private final AtomicLong completedMoves = new AtomicLong();
+    private final AtomicLong failedMoves = new AtomicLong();
+    private final AtomicLong finishedMovedBytes = new AtomicLong();
+
+    public AsyncMover(Config config, MoveJournal journal, VolumeStateCache volumeStateCache, SpaceReservationLedger spaceLedger, Runnable onMoveFinished) {
+        this.config = config;
+        this.journal = journal;
+        this.volumeStateCache = volumeStateCache;
+        this.spaceLedger = spaceLedger;
+        this.onMoveFinished = onMoveFinished;
+        this.globalRateLimiter = new RateLimiter("global", () -> (long) config.getMoveRate() * MB);
+        //free space and config changes are not signaled, so re-check pending moves periodically
+        SCHEDULER.scheduleWithFixedDelay(this::dispatch, DISPATCH_PERIOD.toMillis(), DISPATCH_PERIOD.toMillis(), TimeUnit.MILLISECONDS);
+    }
 
     public int countMovingProcesses() {
-        synchronized (movingProcesses) {
-            return movingProcesses.size();
-        }
+        return movingProcesses.size();
     }
 
     public int countMovingProcessesNoDestination() {
-        synchronized (movingProcesses) {
-            return (int) movingProcesses.stream().filter(mp -> !mp.getDestinationPath().isPresent()).count();
-        }
+        return noDestinationCount.get();
     }
 
-    public Optional<MovingProcess> getMovingProcessByDestination(File destinationPath) {
-        synchronized (movingProcesses) {
-            return movingProcesses.stream().filter(mp -> mp.getDestinationPath().map(dp -> dp.equals(destinationPath)).orElse(false)).findAny();
-        }
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Write move metrics.
+     *
+     * @param w Metrics writer
+     */
+    public void writeMetrics(MetricsServer.Writer w) {
+        Collection<MovingProcess> active = new ArrayList<>(movingProcesses);
+        long now = System.currentTimeMillis();
+        Collection<MovingProcess> copying = active.stream().filter(mp -> mp.getStartTimestamp() != 0).collect(Collectors.toList());
+        w.gauge("plotter_moves_active", "Moves in progress", copying.size());
+        w.gauge("plotter_moves_pending", "Moves waiting for a destination or delay", active.size() - copying.size());
+        w.counter("plotter_moves_completed_total", "Completed moves", completedMoves.get());
+        w.counter("plotter_moves_failed_total", "Failed or interrupted moves", failedMoves.get());
+        w.counter("plotter_moved_bytes_total", "Bytes copied by moves", finishedMovedBytes.get() + copying.stream().mapToLong(MovingProcess::getMovedBytes).sum());
+        w.gauge("plotter_move_throughput_bytes_per_second", "Average throughput of moves in progress, summed",
+                copying.stream().mapToDouble(mp -> mp.getMovedBytes() * 1000d / Math.max(1, now - mp.getStartTimestamp())).sum());
+        w.gauge("plotter_buffer_pool_leased", "Copy buffers in use", bufferPool.getLeasedCount());
+        w.gauge("plotter_buffer_pool_idle", "Idle pooled copy buffers", bufferPool.getIdleCount());
+        w.counter("plotter_buffer_pool_waits_total", "Waits for a free copy buffer", bufferPool.getWaitCount());
+    }
+
+    public Collection<MovingProcess> getMovingProcessesByDestination(File destinationPath) {
+        return new ArrayList<>(movingProcessesByDestination.getOrDefault(destinationPath, Collections.emptySet()));
+    }
+
+    /**
+     * @return Moves that are not assigned to a destination yet
+     */
+    public Collection<MovingProcess> getPendingMovingProcesses() {
+        return movingProcesses.stream().filter(mp -> !mp.getDestinationPath().isPresent()).collect(Collectors.toList());
+    }
+
+    /**
+     * Re-enqueue moves left unfinished by a previous run. Partially copied
+     * files are resumed from the last committed block.
+     *
+     * @param availableDestinations Available destinations of the source file
+     */
+    public void resumeMoves(Function<File, Collection<File>> availableDestinations) {
+        journal.load().forEach(pm -> {
+            log(pm.getQueueName() + " AsyncMover: Resuming unfinished move of " + pm.getSrcFile().getAbsolutePath()
+                    + (pm.getCommittedBlockCount() > 0 ? ", committed blocks: " + pm.getCommittedBlockCount() : ""));
+            moveFileAcync(pm.getSrcFile(), pm.getQueueName(), () -> availableDestinations.apply(pm.getSrcFile()), Duration.ZERO);
+        });
     }
 
     public void moveFileAcync(File srcFile, String queueName, Supplier<Collection<File>> availableDestinations, Duration delayMove) {
-        MovingProcess mp = new MovingProcess(queueName, srcFile);
-        synchronized (movingProcesses) {
-            movingProcesses.add(mp);
+        moveFileAcync(new MovingProcess(queueName, srcFile, availableDestinations), delayMove);
+    }
+
+    private void moveFileAcync(MovingProcess mp, Duration delayMove) {
+        File srcFile = mp.getSrcFile();
+        journal.queued(srcFile, mp.getQueueName());
+        mp.setReservation(spaceLedger.reservePending(srcFile.getName(), mp.getFileSize()));
+        movingProcesses.add(mp);
+        noDestinationCount.incrementAndGet();
+        if (delayMove.toMillis() > 0) {
+            log(mp.getQueueName() + " AsyncMover: Delaying move for " + delayMove + ". File: " + mp.getSrcFile().getAbsolutePath());
+            SCHEDULER.schedule(() -> enqueue(mp), delayMove.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            enqueue(mp);
         }
-        CompletableFuture.runAsync(() -> moveFile(mp, availableDestinations, delayMove));
     }
 
-    private void moveFile(MovingProcess mp, Supplier<Collection<File>> availableDestinations, Duration delayMove) {
+    /**
+     * Request a dispatch pass over pending moves, i.e. when destination
+     * volumes or config have changed.
+     */
+    public void dispatchPendingMoves() {
+        SCHEDULER.execute(this::dispatch);
+    }
+
+    private void enqueue(MovingProcess mp) {
+        mp.setQueuedTimestamp(System.currentTimeMillis());
+        SCHEDULER.execute(() -> {
+            pendingMoves.add(mp);
+            dispatch();
+        });
+    }
+
+    /**
+     * Start pending moves in priority order while there are free move slots.
+     * Runs on the scheduler thread only, which is the only one to take move
+     * slots, so the checks and the increments need no lock. Finished moves
+     * release slots concurrently.
+     */
+    @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
+    private void dispatch() {
         try {
-            if (delayMove.toMillis() > 0) {
-                log(mp.getQueueName() + " AsyncMover: Delaying move for " + delayMove + ". File: " + mp.getSrcFile().getAbsolutePath());
-                Thread.sleep(delayMove.toMillis());
+            if (pendingMoves.isEmpty()) {
+                return;
             }
-            File dest;
-            synchronized (inUseMoveDest) {
-                for (;;) {
-                    //find destination with enough space that is not currently used by another move process and prefer one that is not used as direct destination (temp2=dest)
-                    Optional<File> odest = availableDestinations.get().stream().filter(f -> !inUseMoveDest.contains(f)).findFirst();
-                    if (odest.isPresent()) {
-                        dest = odest.get();
-                        inUseMoveDest.add(dest);
-                        break;
-                    }
-                    log(mp.getQueueName() + " AsyncMover: No any destination volume available at the moment. Waiting...");
-                    inUseMoveDest.wait(Duration.ofMinutes(5).toMillis());
+            Map<File, Double> sourcePressure = new HashMap<>();
+            long now = System.currentTimeMillis();
+            Map<File, Optional<FileStore>> fileStores = new HashMap<>();
+            Map<MovingProcess, Double> priorities = new HashMap<>();
+            pendingMoves.forEach(mp -> priorities.put(mp, getPriority(mp, now, sourcePressure)));
+            pendingMoves.sort(Comparator.comparingDouble((MovingProcess mp) -> priorities.get(mp)).reversed());
+            for (Iterator<MovingProcess> i = pendingMoves.iterator(); i.hasNext();) {
+                MovingProcess mp = i.next();
+                Optional<File> odest = findDestination(mp, fileStores);
+                if (odest.isPresent()) {
+                    i.remove();
+                    File dest = odest.get();
+                    File source = getSourceVolume(mp.getSrcFile());
+                    inUseMoveDest.merge(dest, 1, Integer::sum);
+                    inUseMoveSource.merge(source, 1, Integer::sum);
+                    inUseMoveCount.incrementAndGet();
+                    mp.setDestinationPath(Optional.of(dest));
+                    movingProcessesByDestination.computeIfAbsent(dest, f -> ConcurrentHashMap.newKeySet()).add(mp);
+                    noDestinationCount.decrementAndGet();
+                    CompletableFuture.runAsync(() -> moveFile(mp, dest, source), MOVERS);
                 }
-                mp.setDestinationPath(Optional.of(dest));
             }
-            long s = System.currentTimeMillis();
-            try {
-                log(mp.getQueueName() + " AsyncMover: Move START. File " + mp.getSrcFile().getAbsolutePath() + " to " + dest.getAbsolutePath());
-                new FileMover(mp.getSrcFile(), dest, 0, new byte[COPY_BUFFER_SIZE], new AtomicBoolean(), new AtomicBoolean(), mp::setMovedBytes).run();
-            } catch (IOException ex) {
-                log(mp.getQueueName() + " AsyncMover: moveFile ERROR: " + ex.getClass() + ": " + ex.getMessage());
-            } finally {
-                synchronized (inUseMoveDest) {
-                    inUseMoveDest.remove(dest);
-                    inUseMoveDest.notifyAll();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Move priority. Moves from the fullest tmp2 volumes go first, then the
+     * ones waiting longest, then larger files: a full tmp2 outweighs 100
+     * minutes of waiting, and 10 GB of size weighs as one minute.
+     */
+    private double getPriority(MovingProcess mp, long now, Map<File, Double> sourcePressure) {
+        double pressure = sourcePressure.computeIfAbsent(getSourceVolume(mp.getSrcFile()), f -> volumeStateCache.get(f).getFillRatio());
+        double ageMinutes = (now - mp.getQueuedTimestamp()) / 60_000d;
+        return pressure * 100 + ageMinutes + (double) mp.getFileSize() / GB / 10;
+    }
+
+    /**
+     * @param fileStores File stores of destinations resolved in the dispatch
+     * pass
+     */
+    private Optional<File> findDestination(MovingProcess mp, Map<File, Optional<FileStore>> fileStores) {
+        int maxMoves = config.getMaxMoves();
+        int maxSourceMoves = getMaxSourceMoves(mp.getSrcFile());
+        Optional<File> result = Optional.empty();
+        String waitReason;
+        if (maxMoves > 0 && inUseMoveCount.get() >= maxMoves) {
+            waitReason = "Reached max number of concurrent moves (" + maxMoves + ")";
+        } else if (maxSourceMoves > 0 && inUseMoveSource.getOrDefault(getSourceVolume(mp.getSrcFile()), 0) >= maxSourceMoves) {
+            waitReason = "Reached max number of concurrent moves from " + getSourceVolume(mp.getSrcFile()) + " (" + maxSourceMoves + ")";
+        } else {
+            //find destination with enough space that has a free move slot and prefer one that is not used as direct destination (temp2=dest)
+            //destination on the same filesystem as the source goes first as the file can be just renamed there
+            //partially copied file is resumed on its destination only, so it waits for a free slot there
+            Optional<File> resumeDestination = getResumeDestination(mp);
+            List<File> candidates;
+            if (resumeDestination.isPresent()) {
+                candidates = hasFreeMoveSlot(resumeDestination.get()) ? Collections.singletonList(resumeDestination.get()) : Collections.emptyList();
+                waitReason = "No free move slot or space on resume destination " + resumeDestination.get();
+            } else {
+                candidates = mp.getAvailableDestinations().get().stream().filter(this::hasFreeMoveSlot).collect(Collectors.toList());
+                waitReason = "No any destination volume available at the moment";
+            }
+            Map<File, Boolean> sameFileStore = new HashMap<>();
+            candidates.forEach(f -> sameFileStore.put(f, isSameFileStore(mp, f, fileStores)));
+            candidates = new ArrayList<>(candidates);
+            candidates.sort(Comparator.comparing((File f) -> !sameFileStore.get(f)));
+            for (File f : candidates) {
+                if (reserveDestinationSpace(mp, f, sameFileStore.get(f))) {
+                    result = Optional.of(f);
+                    break;
                 }
-                log(mp.getQueueName() + " AsyncMover: Move FINISHED. Runtime: " + Duration.ofMillis(System.currentTimeMillis() - s) + ". File " + mp.getSrcFile().getAbsolutePath() + " to " + dest.getAbsolutePath());
             }
+        }
+        if (!result.isPresent() && !waitReason.equals(mp.getWaitReason())) {
+            log(mp.getQueueName() + " AsyncMover: " + waitReason + ". Waiting... File: " + mp.getSrcFile().getAbsolutePath());
+        }
+        mp.setWaitReason(result.isPresent() ? null : waitReason);
+        return result;
+    }
+
+    /**
+     * Get destination of the partially copied file. If the destination is no
+     * longer writable, the resume is given up: the partial file is deleted and
+     * the move starts over on any destination.
+     */
+    private Optional<File> getResumeDestination(MovingProcess mp) {
+        Optional<File> result = journal.getResumeDestination(mp.getSrcFile());
+        if (result.isPresent() && !getVolumeState(result.get()).isWritable()) {
+            log(mp.getQueueName() + " AsyncMover: Resume destination " + result.get() + " is not writable. Starting move over. File: " + mp.getSrcFile().getAbsolutePath());
+            FileMover.getDestinationTempFile(result.get(), mp.getSrcFile()).delete();
+            journal.reset(mp.getSrcFile());
+            return Optional.empty();
+        }
+        return result;
+    }
+
+    /**
+     * Book the file size on the destination and drop the pending booking.
+     * Rename within the same file system takes no extra space, and blocks of
+     * a partial copy committed by an earlier attempt are already on the
+     * volume.
+     */
+    private boolean reserveDestinationSpace(MovingProcess mp, File dest, boolean sameFileStore) {
+        long resumedBytes = sameFileStore ? 0 : getCommittedBytes(mp, dest);
+        long bytes = sameFileStore ? 0 : mp.getFileSize() - resumedBytes;
+        Optional<SpaceReservationLedger.Reservation> reservation = spaceLedger.tryReserve(mp.getSrcFile().getName(), bytes, getVolumeState(dest));
+        reservation.ifPresent(r -> {
+            mp.getReservation().release();
+            mp.setReservation(r);
+            mp.setResumedBytes(resumedBytes);
+        });
+        return reservation.isPresent();
+    }
+
+    /**
+     * Get size of blocks committed to the destination temp file by an earlier
+     * attempt. The temp file length is not used, as a preallocated file is
+     * sparse.
+     */
+    private long getCommittedBytes(MovingProcess mp, File dest) {
+        File tempFile = FileMover.getDestinationTempFile(dest, mp.getSrcFile());
+        long fileSize = mp.getFileSize();
+        long result = journal.getCommittedBlocks(mp.getSrcFile(), tempFile, fileSize).keySet().stream()
+                .mapToLong(block -> Math.min((block + 1) * FileChecksum.BLOCK_SIZE, fileSize) - Math.min(block * FileChecksum.BLOCK_SIZE, fileSize))
+                .sum();
+        return Math.min(result, tempFile.length());
+    }
+
+    private static boolean isSameFileStore(MovingProcess mp, File dest, Map<File, Optional<FileStore>> fileStores) {
+        return mp.getSrcFileStore().isPresent() && mp.getSrcFileStore().equals(fileStores.computeIfAbsent(dest, IOUtils::getFileStore));
+    }
+
+    private VolumeState getVolumeState(File dest) {
+        return volumeStateCache.getRoots().stream().filter(vs -> vs.getPath().equals(dest)).findAny()
+                .orElseGet(() -> volumeStateCache.get(dest));
+    }
+
+    private void moveFile(MovingProcess mp, File dest, File source) {
+        long s = System.currentTimeMillis();
+        mp.setStartTimestamp(s);
+        boolean success = false;
+        boolean retry = false;
+        try {
+            log(mp.getQueueName() + " AsyncMover: Move START. File " + mp.getSrcFile().getAbsolutePath() + " to " + dest.getAbsolutePath());
+            new FileMover(mp.getSrcFile(), dest, config.getCopyMode(), config.getMoveStreams(dest), config.getValidationMode(), getRateLimiters(mp.getSrcFile(), dest), bufferPool, (long) config.getMoveSync() * MB, journal, new AtomicBoolean(), new AtomicBoolean(), mp::setMovedBytes).run();
+            journal.done(mp.getSrcFile());
+            success = true;
+        } catch (FileMover.ValidationException ex) {
+            mp.setValidationFailures(mp.getValidationFailures() + 1);
+            retry = mp.getValidationFailures() <= MAX_VALIDATION_RETRIES;
+            log(mp.getQueueName() + " AsyncMover: moveFile validation FAILED (" + mp.getValidationFailures() + "): " + ex.getMessage()
+                    + (retry ? ". Retrying move in " + VALIDATION_RETRY_DELAY : ". Giving up until restart"));
+        } catch (IOException ex) {
+            log(mp.getQueueName() + " AsyncMover: moveFile ERROR: " + ex.getClass() + ": " + ex.getMessage());
         } catch (InterruptedException ex) {
             log(mp.getQueueName() + " AsyncMover: moveFile interrupted: " + ex.getMessage());
         } finally {
-            synchronized (movingProcesses) {
-                movingProcesses.remove(mp);
+            if (retry) {
+                //queued before this one is removed, so the move is never seen as finished
+                MovingProcess retryMp = new MovingProcess(mp.getQueueName(), mp.getSrcFile(), mp.getAvailableDestinations());
+                retryMp.setValidationFailures(mp.getValidationFailures());
+                moveFileAcync(retryMp, VALIDATION_RETRY_DELAY);
             }
+            movingProcessesByDestination.computeIfPresent(dest, (k, v) -> v.remove(mp) && v.isEmpty() ? null : v);
+            movingProcesses.remove(mp);
+            mp.getReservation().release();
+            inUseMoveDest.computeIfPresent(dest, (k, v) -> v > 1 ? v - 1 : null);
+            inUseMoveSource.computeIfPresent(source, (k, v) -> v > 1 ? v - 1 : null);
+            inUseMoveCount.decrementAndGet();
+            (success ? completedMoves : failedMoves).incrementAndGet();
+            finishedMovedBytes.addAndGet(mp.getMovedBytes());
+            volumeStateCache.invalidate();
+            log(mp.getQueueName() + " AsyncMover: Move FINISHED. Runtime: " + Duration.ofMillis(System.currentTimeMillis() - s) + ". File " + mp.getSrcFile().getAbsolutePath() + " to " + dest.getAbsolutePath() + ". Buffer pool: " + bufferPool);
+            dispatchPendingMoves();
+            onMoveFinished.run();
         }
     }
 
+    private boolean hasFreeMoveSlot(File dest) {
+        return inUseMoveDest.getOrDefault(dest, 0) < getMaxDestinationMoves(dest);
+    }
+
+    /**
+     * Max number of concurrent moves to the destination. Configured per volume
+     * with max-write-moves, otherwise the global max-dest-moves. Network
+     * shared volumes take at least NETWORK_DEST_MOVES by default.
+     */
+    private int getMaxDestinationMoves(File dest) {
+        OptionalInt volumeMax = config.getVolumeParams(dest).map(VolumeParams::getMaxWriteMoves).orElse(OptionalInt.empty());
+        if (volumeMax.isPresent()) {
+            return volumeMax.getAsInt();
+        }
+        return getVolumeState(dest).isNetwork() ? Math.max(NETWORK_DEST_MOVES, config.getMaxDestMoves()) : config.getMaxDestMoves();
+    }
+
+    /**
+     * Max number of concurrent moves reading from the source volume.
+     * Configured per volume with max-read-moves, otherwise the global
+     * max-source-moves. Zero means unlimited.
+     */
+    private int getMaxSourceMoves(File srcFile) {
+        return config.getVolumeParams(srcFile).map(VolumeParams::getMaxReadMoves).orElse(OptionalInt.empty()).orElse(config.getMaxSourceMoves());
+    }
+
+    /**
+     * Get volume the source file resides on: configured volume if any,
+     * otherwise the file system root.
+     */
+    private File getSourceVolume(File srcFile) {
+        return config.getVolumeParams(srcFile).map(vp -> new File(fixVolumePathForWindows(vp.getVolume())))
+                .orElseGet(() -> srcFile.getAbsoluteFile().toPath().getRoot().toFile());
+    }
+
+    /**
+     * Get rate limiters that apply to a move: global limit, limit of the
+     * source volume and limit of the destination volume. Volume limiters are
+     * shared by all moves on the volume.
+     */
+    private Collection<RateLimiter> getRateLimiters(File srcFile, File dest) {
+        Collection<RateLimiter> result = new ArrayList<>();
+        result.add(globalRateLimiter);
+        config.getVolumeParams(srcFile).filter(vp -> vp.getReadRate().isPresent())
+                .ifPresent(vp -> result.add(getVolumeRateLimiter(readRateLimiters, vp.getVolume(), VolumeParams::getReadRate)));
+        config.getVolumeParams(dest).filter(vp -> vp.getWriteRate().isPresent())
+                .ifPresent(vp -> result.add(getVolumeRateLimiter(writeRateLimiters, vp.getVolume(), VolumeParams::getWriteRate)));
+        return result;
+    }
+
+    private RateLimiter getVolumeRateLimiter(Map<String, RateLimiter> rateLimiters, String volume, Function<VolumeParams, OptionalInt> rateGetter) {
+        return rateLimiters.computeIfAbsent(volume, v -> new RateLimiter(v, () -> {
+            VolumeParams vp;
+            synchronized (config.getVolumeParamsMap()) {
+                vp = config.getVolumeParamsMap().get(v);
+            }
+            return vp == null ? 0 : (long) rateGetter.apply(vp).orElse(0) * MB;
+        }));
+    }
+
     public static class MovingProcess {
 
         private final String queueName;
         private final File srcFile;
-        private Optional<File> destinationPath = Optional.empty();
+        private final Supplier<Collection<File>> availableDestinations;
+        private volatile Optional<File> destinationPath = Optional.empty();
         private final long fileSize;
-        private long movedBytes;
+        private final Optional<FileStore> srcFileStore;
+        //written by the copy thread, read by the control loop and metrics
+        private volatile long movedBytes;
+        private long queuedTimestamp;
+        private volatile long startTimestamp;
+        private volatile SpaceReservationLedger.Reservation reservation;
+        //part of the file copied by an earlier attempt and not booked on the destination
+        private volatile long resumedBytes;
+        private String waitReason;
+        private int validationFailures;
 
-        public MovingProcess(String queueName, File srcFile) {
+        public MovingProcess(String queueName, File srcFile, Supplier<Collection<File>> availableDestinations) {
             this.queueName = queueName;
             this.srcFile = srcFile;
+            this.availableDestinations = availableDestinations;
             this.fileSize = srcFile.length();
+            this.srcFileStore = IOUtils.getFileStore(srcFile);
         }
 
         public String getQueueName() {
@@ -125,16 +465,76 @@ public class AsyncMover {
             return fileSize;
         }
 
+        private Optional<FileStore> getSrcFileStore() {
+            return srcFileStore;
+        }
+
         public long getMovedBytes() {
             return movedBytes;
         }
 
+        public long getQueuedTimestamp() {
+            return queuedTimestamp;
+        }
+
+        private Supplier<Collection<File>> getAvailableDestinations() {
+            return availableDestinations;
+        }
+
+        private String getWaitReason() {
+            return waitReason;
+        }
+
+        /**
+         * @return Time the copy has started, 0 if it is still pending
+         */
+        public long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        private void setStartTimestamp(long startTimestamp) {
+            this.startTimestamp = startTimestamp;
+        }
+
+        private void setQueuedTimestamp(long queuedTimestamp) {
+            this.queuedTimestamp = queuedTimestamp;
+        }
+
+        private void setWaitReason(String waitReason) {
+            this.waitReason = waitReason;
+        }
+
         private void setDestinationPath(Optional<File> destinationPath) {
             this.destinationPath = destinationPath;
         }
 
         private void setMovedBytes(long movedBytes) {
             this.movedBytes = movedBytes;
+            reservation.setLanded(Math.max(0, movedBytes - resumedBytes));
+        }
+
+        private void setResumedBytes(long resumedBytes) {
+            this.resumedBytes = resumedBytes;
+        }
+
+        private int getValidationFailures() {
+            return validationFailures;
+        }
+
+        private void setValidationFailures(int validationFailures) {
+            this.validationFailures = validationFailures;
+        }
+
+        /**
+         * @return Space booked for the file, on the destination once it is
+         * assigned
+         */
+        public SpaceReservationLedger.Reservation getReservation() {
+            return reservation;
+        }
+
+        private void setReservation(SpaceReservationLedger.Reservation reservation) {
+            this.reservation = reservation;
         }
 
     }
@@ -7,16 +7,72 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
+ * Named executors for asynchronous tasks. Tasks that block for a long time
+ * (process output readers, moves, queue delays and admission waits) run on
+ * their own pools instead of the common ForkJoinPool, so they can't starve
+ * each other. With system property <code>plotter.virtual-threads=true</code>
+ * on Java 21+ the pools use virtual threads. Max threads of a pool can be
+ * set with system property <code>plotter.&lt;name&gt;-threads</code>, i.e.
+ * <code>plotter.mover-threads=16</code>.
  *
  * @author Sliva Co
  */
 public final class AsyncUtil {
 
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("plotter.virtual-threads");
+
+    /**
+     * Plot process output readers. Each running plot holds two.
+     */
+    public static final NamedExecutor READERS = new NamedExecutor("reader", 256);
+    /**
+     * File moves, one task per move.
+     */
+    public static final NamedExecutor MOVERS = new NamedExecutor("mover", 64);
+    /**
+     * Plot starts. Tasks wait for queue delays, temp volume and host
+     * admission, so they are kept apart from CALLBACKS.
+     */
+    public static final NamedExecutor STARTERS = new NamedExecutor("starter", 128);
+    /**
+     * Plot phase change and completion callbacks. Tasks must not wait for
+     * admission.
+     */
+    public static final NamedExecutor CALLBACKS = new NamedExecutor("callback", 128);
+    /**
+     * Parallel streams of a single copy or checksum. Separate from MOVERS, as
+     * a move waits for its streams.
+     */
+    public static final NamedExecutor IO_STREAMS = new NamedExecutor("io-stream", 128);
+    /**
+     * Short scheduling tasks, i.e. move dispatch. Single thread, tasks must not
+     * block.
+     */
+    public static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private AsyncUtil() {
+    }
+
     @SuppressWarnings("NestedAssignment")
     public static void asyncReadLines(InputStream input, Charset charset, Consumer<String> consumer) {
         BufferedReader br = new BufferedReader(new InputStreamReader(input, charset));
@@ -31,6 +87,110 @@ public final class AsyncUtil {
             } finally {
                 consumer.accept(null);
             }
-        });
+        }, READERS);
+    }
+
+    /**
+     * Write executor metrics.
+     *
+     * @param w Metrics writer
+     */
+    public static void writeMetrics(MetricsServer.Writer w) {
+        for (NamedExecutor e : new NamedExecutor[]{READERS, MOVERS, STARTERS, CALLBACKS, IO_STREAMS}) {
+            w.gauge("plotter_executor_active_threads", "Tasks running on the executor", e.getActiveCount(), "executor", e.getName());
+        }
+        for (NamedExecutor e : new NamedExecutor[]{READERS, MOVERS, STARTERS, CALLBACKS, IO_STREAMS}) {
+            w.gauge("plotter_executor_queued_tasks", "Tasks waiting for an executor thread", e.getQueuedCount(), "executor", e.getName());
+        }
+        for (NamedExecutor e : new NamedExecutor[]{READERS, MOVERS, STARTERS, CALLBACKS, IO_STREAMS}) {
+            w.counter("plotter_executor_completed_tasks_total", "Tasks completed by the executor", e.getCompletedCount(), "executor", e.getName());
+        }
+    }
+
+    /**
+     * Executor with named daemon threads and task counters. Bounded to max
+     * threads, tasks above the bound are queued.
+     */
+    public static class NamedExecutor implements Executor {
+
+        private final String name;
+        private final ExecutorService delegate;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+
+        /**
+         * @param defaultMaxThreads Max threads unless set by system property
+         * <code>plotter.&lt;name&gt;-threads</code>
+         */
+        private NamedExecutor(String name, int defaultMaxThreads) {
+            this.name = name;
+            int maxThreads = Math.max(1, Integer.getInteger("plotter." + name + "-threads", defaultMaxThreads));
+            ExecutorService virtual = VIRTUAL_THREADS ? newVirtualThreadExecutor(name) : null;
+            if (virtual != null) {
+                this.delegate = virtual;
+            } else {
+                AtomicInteger counter = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+                pool.allowCoreThreadTimeOut(true);
+                this.delegate = pool;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getActiveCount() {
+            return active.get();
+        }
+
+        public int getQueuedCount() {
+            return queued.get();
+        }
+
+        public long getCompletedCount() {
+            return completed.get();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            queued.incrementAndGet();
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        }
+
+        /**
+         * Create thread per task executor with named virtual threads. Java 21
+         * API is called by reflection, as the code is compiled for Java 8.
+         *
+         * @return Executor or null if virtual threads are not supported
+         */
+        @SuppressWarnings("UseSpecificCatch")
+        private static ExecutorService newVirtualThreadExecutor(String name) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+                ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) newExecutor.invoke(null, factory);
+            } catch (Exception ex) {
+                LoggerUtil.log("AsyncUtil: Virtual threads are not supported, using platform threads for " + name + " executor");
+                return null;
+            }
+        }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded pool of reusable page-aligned direct byte buffers. At most
+ * maxBuffers are leased at a time - lease blocks until a buffer is returned.
+ * Up to maxIdle returned buffers are kept for reuse, the rest are left to GC.
+ *
+ * @author Sliva Co
+ */
+public class BufferPool {
+
+    public static final int PAGE_SIZE = 4096;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final int maxIdle;
+    private final Deque<ByteBuffer> idleBuffers = new ArrayDeque<>();
+    private int leasedCount;
+    private long waitCount;
+
+    public BufferPool(int bufferSize, int maxBuffers, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.maxIdle = maxIdle;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Lease a buffer. Must be returned with release() after use.
+     *
+     * @return cleared buffer
+     * @throws InterruptedException if interrupted while waiting for a free
+     * buffer
+     */
+    public ByteBuffer lease() throws InterruptedException {
+        synchronized (idleBuffers) {
+            if (leasedCount >= maxBuffers) {
+                waitCount++;
+                while (leasedCount >= maxBuffers) {
+                    idleBuffers.wait();
+                }
+            }
+            leasedCount++;
+            ByteBuffer buffer = idleBuffers.pollFirst();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return IOUtils.allocateAlignedDirect(bufferSize, PAGE_SIZE);
+    }
+
+    public void release(ByteBuffer buffer) {
+        synchronized (idleBuffers) {
+            leasedCount--;
+            if (idleBuffers.size() < maxIdle) {
+                idleBuffers.addFirst(buffer);
+            }
+            idleBuffers.notify();
+        }
+    }
+
+    public int getLeasedCount() {
+        synchronized (idleBuffers) {
+            return leasedCount;
+        }
+    }
+
+    public int getIdleCount() {
+        synchronized (idleBuffers) {
+            return idleBuffers.size();
+        }
+    }
+
+    /**
+     * Number of times a lease had to wait for a free buffer.
+     *
+     * @return wait count
+     */
+    public long getWaitCount() {
+        synchronized (idleBuffers) {
+            return waitCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (idleBuffers) {
+            return "leased=" + leasedCount + ", idle=" + idleBuffers.size() + ", waits=" + waitCount;
+        }
+    }
+}
@@ -3,11 +3,17 @@
  */
 package com.sliva.plotter;
 
+import static com.sliva.plotter.IOUtils.fixVolumePathForWindows;
+import java.io.File;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Comparator;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
 
 /**
  *
@@ -19,7 +25,19 @@ public class Config {
     private int nThreads = 4;
     private Duration delayStartQueue = Duration.ofMinutes(60);
     private Duration moveDelay = Duration.ofMinutes(30);
+    private FileMover.CopyMode copyMode = FileMover.CopyMode.CHANNEL;
+    private int moveStreams = 1;
+    private int moveRate = 0;
+    private int moveSync = 0;
+    private int maxMoves = 0;
+    private int maxDestMoves = 1;
+    private int maxSourceMoves = 0;
+    private int hostMemory = 0;
+    private int hostThreads = 0;
+    private int metricsPort = 0;
+    private FileMover.ValidationMode validationMode = FileMover.ValidationMode.CHECKSUM;
     private final Map<String, PlotterParams> plotterParamsMap = new HashMap<>();
+    private final Map<String, VolumeParams> volumeParamsMap = new HashMap<>();
 
     public Config() {
     }
@@ -56,6 +74,147 @@ public class Config {
         this.moveDelay = moveDelay;
     }
 
+    public FileMover.CopyMode getCopyMode() {
+        return copyMode;
+    }
+
+    public void setCopyMode(FileMover.CopyMode copyMode) {
+        this.copyMode = copyMode;
+    }
+
+    public FileMover.ValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    public void setValidationMode(FileMover.ValidationMode validationMode) {
+        this.validationMode = validationMode;
+    }
+
+    public int getMoveStreams() {
+        return moveStreams;
+    }
+
+    public void setMoveStreams(int moveStreams) {
+        this.moveStreams = moveStreams;
+    }
+
+    /**
+     * Get number of parallel copy streams for a move to the destination.
+     *
+     * @param destination Destination path
+     * @return volume specific number of streams or the global default
+     */
+    public int getMoveStreams(File destination) {
+        return getVolumeParams(destination).map(VolumeParams::getMoveStreams).orElse(OptionalInt.empty()).orElse(moveStreams);
+    }
+
+    /**
+     * Global rate limit of all moves, MB/s. Zero means unlimited.
+     *
+     * @return rate in MB/s
+     */
+    public int getMoveRate() {
+        return moveRate;
+    }
+
+    public void setMoveRate(int moveRate) {
+        this.moveRate = moveRate;
+    }
+
+    /**
+     * Force copied data to disk every moveSync MB per copy stream. Zero means
+     * never.
+     *
+     * @return sync interval in MB
+     */
+    public int getMoveSync() {
+        return moveSync;
+    }
+
+    public void setMoveSync(int moveSync) {
+        this.moveSync = moveSync;
+    }
+
+    /**
+     * Max number of concurrent moves in total. Zero means unlimited.
+     *
+     * @return number of moves
+     */
+    public int getMaxMoves() {
+        return maxMoves;
+    }
+
+    public void setMaxMoves(int maxMoves) {
+        this.maxMoves = maxMoves;
+    }
+
+    /**
+     * Default max number of concurrent moves to a destination volume.
+     *
+     * @return number of moves
+     */
+    public int getMaxDestMoves() {
+        return maxDestMoves;
+    }
+
+    public void setMaxDestMoves(int maxDestMoves) {
+        this.maxDestMoves = maxDestMoves;
+    }
+
+    /**
+     * Default max number of concurrent moves from a source volume. Zero means
+     * unlimited.
+     *
+     * @return number of moves
+     */
+    public int getMaxSourceMoves() {
+        return maxSourceMoves;
+    }
+
+    public void setMaxSourceMoves(int maxSourceMoves) {
+        this.maxSourceMoves = maxSourceMoves;
+    }
+
+    /**
+     * Max sum of memory buffers of all plot processes, MiB. Zero means
+     * unlimited.
+     *
+     * @return memory in MiB
+     */
+    public int getHostMemory() {
+        return hostMemory;
+    }
+
+    public void setHostMemory(int hostMemory) {
+        this.hostMemory = hostMemory;
+    }
+
+    /**
+     * Max sum of threads of all plot processes. Zero means unlimited.
+     *
+     * @return number of threads
+     */
+    public int getHostThreads() {
+        return hostThreads;
+    }
+
+    public void setHostThreads(int hostThreads) {
+        this.hostThreads = hostThreads;
+    }
+
+    /**
+     * HTTP port of the metrics endpoint. Zero means disabled.
+     *
+     * @return port
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
     public Map<String, PlotterParams> getPlotterParamsMap() {
         return plotterParamsMap;
     }
@@ -72,4 +231,24 @@ public class Config {
         }
     }
 
+    public Map<String, VolumeParams> getVolumeParamsMap() {
+        return volumeParamsMap;
+    }
+
+    /**
+     * Find configured volume the path belongs to. If configured volumes are
+     * nested, the longest one wins.
+     *
+     * @param path File or directory path
+     * @return Optional of volume parameters
+     */
+    public Optional<VolumeParams> getVolumeParams(File path) {
+        Path p = path.getAbsoluteFile().toPath();
+        synchronized (volumeParamsMap) {
+            return volumeParamsMap.values().stream()
+                    .filter(vp -> p.startsWith(new File(fixVolumePathForWindows(vp.getVolume())).getAbsoluteFile().toPath()))
+                    .max(Comparator.comparingInt(vp -> vp.getVolume().length()));
+        }
+    }
+
 }
@@ -10,9 +10,11 @@ import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -30,6 +32,7 @@ public final class ConfigReader {
     public static boolean readConfig(File file, Config config) {
         boolean changed = false;
         Collection<PlotterParams> ppFromConfig = new ArrayList<>();
+        Collection<VolumeParams> vpFromConfig = new ArrayList<>();
         try (BufferedReader in = new BufferedReader(new FileReader(file))) {
             synchronized (config.getPlotterParamsMap()) {
                 for (String s = in.readLine(); s != null; s = in.readLine()) {
@@ -43,12 +46,12 @@ public final class ConfigReader {
                             if (b.length == 2) {
                                 String tmpDrive = b[0];
                                 String tmp2Drive = b[1];
-                                PlotterParams pp = new PlotterParams(name, tmpDrive, tmp2Drive);
+                                PlotterParams pp = new PlotterParams(name, tmpDrive, tmp2Drive, parseOptions(a, 2));
                                 PlotterParams ppOld = config.getPlotterParamsMap().get(name);
                                 if (ppOld == null || !ppOld.equals(pp)) {
                                     config.getPlotterParamsMap().put(name, pp);
                                     changed = true;
-                                    log("Queue: " + name + "\t " + tmpDrive + " -> " + tmp2Drive);
+                                    log("Queue: " + name + "\t " + tmpDrive + " -> " + tmp2Drive + (pp.getOptions().isEmpty() ? "" : "\t" + pp.getOptions()));
                                 }
                                 ppFromConfig.add(pp);
                             }
@@ -81,6 +84,95 @@ public final class ConfigReader {
                             changed = true;
                             log("moveDelay=" + moveDelay2);
                         }
+                    } else if (s.startsWith("volume=")) {
+                        String a[] = s.split("\t");
+                        String volume = a[0].split("=")[1].trim();
+                        VolumeParams vp = new VolumeParams(volume, parseOptions(a, 1));
+                        synchronized (config.getVolumeParamsMap()) {
+                            VolumeParams vpOld = config.getVolumeParamsMap().put(volume, vp);
+                            if (vpOld == null || !vpOld.equals(vp)) {
+                                changed = true;
+                                log("Volume: " + volume + "\t " + vp.getOptions());
+                            }
+                        }
+                        vpFromConfig.add(vp);
+                    } else if (s.startsWith("move-streams=")) {
+                        int moveStreams2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (moveStreams2 != config.getMoveStreams()) {
+                            config.setMoveStreams(moveStreams2);
+                            changed = true;
+                            log("moveStreams=" + moveStreams2);
+                        }
+                    } else if (s.startsWith("move-rate=")) {
+                        int moveRate2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (moveRate2 != config.getMoveRate()) {
+                            config.setMoveRate(moveRate2);
+                            changed = true;
+                            log("moveRate=" + moveRate2 + " MB/s");
+                        }
+                    } else if (s.startsWith("move-sync=")) {
+                        int moveSync2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (moveSync2 != config.getMoveSync()) {
+                            config.setMoveSync(moveSync2);
+                            changed = true;
+                            log("moveSync=" + moveSync2 + " MB");
+                        }
+                    } else if (s.startsWith("max-moves=")) {
+                        int maxMoves2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (maxMoves2 != config.getMaxMoves()) {
+                            config.setMaxMoves(maxMoves2);
+                            changed = true;
+                            log("maxMoves=" + maxMoves2);
+                        }
+                    } else if (s.startsWith("max-dest-moves=")) {
+                        int maxDestMoves2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (maxDestMoves2 != config.getMaxDestMoves()) {
+                            config.setMaxDestMoves(maxDestMoves2);
+                            changed = true;
+                            log("maxDestMoves=" + maxDestMoves2);
+                        }
+                    } else if (s.startsWith("max-source-moves=")) {
+                        int maxSourceMoves2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (maxSourceMoves2 != config.getMaxSourceMoves()) {
+                            config.setMaxSourceMoves(maxSourceMoves2);
+                            changed = true;
+                            log("maxSourceMoves=" + maxSourceMoves2);
+                        }
+                    } else if (s.startsWith("host-memory=")) {
+                        int hostMemory2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (hostMemory2 != config.getHostMemory()) {
+                            config.setHostMemory(hostMemory2);
+                            changed = true;
+                            log("hostMemory=" + hostMemory2 + " MiB");
+                        }
+                    } else if (s.startsWith("host-threads=")) {
+                        int hostThreads2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (hostThreads2 != config.getHostThreads()) {
+                            config.setHostThreads(hostThreads2);
+                            changed = true;
+                            log("hostThreads=" + hostThreads2);
+                        }
+                    } else if (s.startsWith("metrics-port=")) {
+                        int metricsPort2 = Integer.parseInt(s.split("=")[1].trim());
+                        if (metricsPort2 != config.getMetricsPort()) {
+                            config.setMetricsPort(metricsPort2);
+                            changed = true;
+                            log("metricsPort=" + metricsPort2);
+                        }
+                    } else if (s.startsWith("move-validate=")) {
+                        FileMover.ValidationMode validationMode2 = FileMover.ValidationMode.valueOf(s.split("=")[1].trim().toUpperCase());
+                        if (validationMode2 != config.getValidationMode()) {
+                            config.setValidationMode(validationMode2);
+                            changed = true;
+                            log("validationMode=" + validationMode2);
+                        }
+                    } else if (s.startsWith("copy-mode=")) {
+                        FileMover.CopyMode copyMode2 = FileMover.CopyMode.valueOf(s.split("=")[1].trim().toUpperCase());
+                        if (copyMode2 != config.getCopyMode()) {
+                            config.setCopyMode(copyMode2);
+                            changed = true;
+                            log("copyMode=" + copyMode2);
+                        }
                     }
                 }
                 for (Iterator<Map.Entry<String, PlotterParams>> i = config.getPlotterParamsMap().entrySet().iterator(); i.hasNext();) {
@@ -100,6 +192,12 @@ public final class ConfigReader {
                         changed = true;
                     }
                 }
+                synchronized (config.getVolumeParamsMap()) {
+                    if (config.getVolumeParamsMap().keySet().retainAll(vpFromConfig.stream().map(VolumeParams::getVolume).collect(Collectors.toSet()))) {
+                        log("Detected Volume config removal");
+                        changed = true;
+                    }
+                }
             }
         } catch (IOException ex) {
             log("ERROR: " + ex.getClass() + " " + ex.getMessage());
@@ -107,6 +205,26 @@ public final class ConfigReader {
         return changed;
     }
 
+    /**
+     * Parse "key=value" tokens.
+     *
+     * @param tokens Tab separated config line tokens
+     * @param from Index of the first option token
+     * @return Map of options
+     */
+    private static Map<String, String> parseOptions(String[] tokens, int from) {
+        Map<String, String> result = new HashMap<>();
+        for (int i = from; i < tokens.length; i++) {
+            String b[] = tokens[i].split("=");
+            if (b.length == 2) {
+                result.put(b[0].trim(), b[1].trim());
+            } else if (!tokens[i].trim().isEmpty()) {
+                log("Unrecognized option ignored: " + tokens[i]);
+            }
+        }
+        return result;
+    }
+
     private static void log(String s) {
         LoggerUtil.log("ConfigReader: " + s);
     }
@@ -0,0 +1,183 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import static com.sliva.plotter.AsyncUtil.IO_STREAMS;
+import static com.sliva.plotter.IOUtils.GB;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 checksum of a file calculated per fixed size block. Blocks are
+ * independent, so a file can be checksummed by several streams at once as
+ * long as every block is fed sequentially by a single stream.
+ *
+ * @author Sliva Co
+ */
+public class FileChecksum {
+
+    public static final long BLOCK_SIZE = GB;
+    public static final String MANIFEST_EXT = ".crc32";
+
+    private final long fileSize;
+    private final CRC32[] blocks;
+    private final Long[] restoredBlocks;
+
+    public FileChecksum(long fileSize) {
+        this.fileSize = fileSize;
+        this.blocks = new CRC32[(int) ((fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new CRC32();
+        }
+        this.restoredBlocks = new Long[blocks.length];
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    public long getBlockValue(int block) {
+        return restoredBlocks[block] != null ? restoredBlocks[block] : blocks[block].getValue();
+    }
+
+    /**
+     * Set checksum of a block calculated earlier, i.e. by an interrupted copy.
+     *
+     * @param block Block index
+     * @param value Block checksum
+     */
+    public void restoreBlock(int block, long value) {
+        restoredBlocks[block] = value;
+    }
+
+    /**
+     * Feed data located at the file position. Buffer position is not changed.
+     *
+     * @param position File position of the first remaining byte in data
+     * @param data Data buffer
+     */
+    public void update(long position, ByteBuffer data) {
+        ByteBuffer b = data.duplicate();
+        while (b.hasRemaining()) {
+            int block = (int) (position / BLOCK_SIZE);
+            int n = (int) Math.min(b.remaining(), (block + 1) * BLOCK_SIZE - position);
+            ByteBuffer part = b.duplicate();
+            part.limit(part.position() + n);
+            blocks[block].update(part);
+            b.position(b.position() + n);
+            position += n;
+        }
+    }
+
+    /**
+     * Compare with another checksum.
+     *
+     * @param other Checksum to compare with
+     * @return index of the first mismatching block, or -1 if checksums match
+     */
+    public int mismatch(FileChecksum other) {
+        if (fileSize != other.fileSize) {
+            return 0;
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            if (getBlockValue(i) != other.getBlockValue(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write sidecar manifest file with block checksums.
+     *
+     * @param file File the checksum belongs to. Manifest is written next to it
+     * with MANIFEST_EXT extension
+     * @throws IOException on write error
+     */
+    public void writeManifest(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(file.getParentFile(), file.getName() + MANIFEST_EXT), StandardCharsets.UTF_8.name())) {
+            out.println("file=" + file.getName());
+            out.println("size=" + fileSize);
+            out.println("block-size=" + BLOCK_SIZE);
+            for (int i = 0; i < blocks.length; i++) {
+                out.println(String.format("%08x", getBlockValue(i)));
+            }
+        }
+    }
+
+    /**
+     * Calculate checksum of a file with a single sequential pass, or with
+     * several streams reading their own ranges of blocks in parallel.
+     *
+     * @param file File to calculate checksum of
+     * @param streams Number of parallel streams
+     * @param bufferPool Pool of read buffers
+     * @return File checksum
+     * @throws IOException on read error
+     * @throws InterruptedException if interrupted
+     */
+    public static FileChecksum calculate(File file, int streams, BufferPool bufferPool) throws IOException, InterruptedException {
+        FileChecksum result = new FileChecksum(file.length());
+        long rangeSize = (result.getBlockCount() + Math.max(streams, 1) - 1) / Math.max(streams, 1) * BLOCK_SIZE;
+        if (streams <= 1 || rangeSize >= result.getFileSize()) {
+            result.calculateRange(file, 0, result.getFileSize(), bufferPool);
+            return result;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (long start = 0; start < result.getFileSize(); start += rangeSize) {
+                long from = start;
+                long to = Math.min(start + rangeSize, result.getFileSize());
+                FutureTask<?> task = new FutureTask<>(() -> {
+                    result.calculateRange(file, from, to, bufferPool);
+                    return null;
+                });
+                futures.add(task);
+                IO_STREAMS.execute(task);
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return result;
+    }
+
+    private void calculateRange(File file, long from, long to, BufferPool bufferPool) throws IOException, InterruptedException {
+        ByteBuffer buffer = bufferPool.lease();
+        try (FileChannel in = FileChannel.open(file.toPath(), READ)) {
+            for (long position = from; position < to;) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), to - position));
+                int n = in.read(buffer, position);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file at position " + position + ": " + file);
+                }
+                buffer.flip();
+                update(position, buffer);
+                position += n;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
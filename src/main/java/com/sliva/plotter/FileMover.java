@@ -3,18 +3,45 @@
  */
 package com.sliva.plotter;
 
+import static com.sliva.plotter.AsyncUtil.IO_STREAMS;
 import static com.sliva.plotter.IOUtils.GB;
 import static com.sliva.plotter.IOUtils.KB;
+import static com.sliva.plotter.IOUtils.MB;
+import static com.sliva.plotter.IOUtils.getDirectOpenOption;
+import static com.sliva.plotter.IOUtils.isSameFileStore;
+import static com.sliva.plotter.IOUtils.reflinkFile;
 import static com.sliva.plotter.LoggerUtil.log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -24,22 +51,36 @@ import java.util.function.Consumer;
 public class FileMover {
 
     private static final long PRINT_PROGRESS_STEP_PERCENT = 10;
+    private static final long TRANSFER_CHUNK_SIZE = 64 * MB;
     private static final int SELECTIVE_CHECK_SECTORS = 200;
     private static final int SELECTIVE_CHECK_SECTOR_SIZE = 4 * KB;
 
     private final File sourceFile;
     private final File destinationDir;
-    private final int copyThrottle;
-    private final byte[] buffer;
+    private final CopyMode copyMode;
+    private final int streams;
+    private final ValidationMode validationMode;
+    private final Collection<RateLimiter> rateLimiters;
+    private final BufferPool bufferPool;
+    private final long syncInterval;
+    private final MoveJournal journal;
     private final AtomicBoolean paused;
     private final AtomicBoolean interrupted;
     private final Consumer<Long> onMoveProgress;
+    private long nextProgressToPrintPercent;
+    private FileChecksum sourceChecksum;
+    private Map<Integer, OptionalLong> resumedBlocks = Collections.emptyMap();
 
-    public FileMover(File sourceFile, File destinationDir, int copyThrottle, byte[] buffer, AtomicBoolean paused, AtomicBoolean interrupted, Consumer<Long> onMoveProgress) {
+    public FileMover(File sourceFile, File destinationDir, CopyMode copyMode, int streams, ValidationMode validationMode, Collection<RateLimiter> rateLimiters, BufferPool bufferPool, long syncInterval, MoveJournal journal, AtomicBoolean paused, AtomicBoolean interrupted, Consumer<Long> onMoveProgress) {
         this.sourceFile = sourceFile;
         this.destinationDir = destinationDir;
-        this.copyThrottle = copyThrottle;
-        this.buffer = buffer;
+        this.copyMode = copyMode;
+        this.streams = streams;
+        this.validationMode = validationMode;
+        this.rateLimiters = rateLimiters;
+        this.bufferPool = bufferPool;
+        this.syncInterval = syncInterval;
+        this.journal = journal;
         this.paused = paused;
         this.interrupted = interrupted;
         this.onMoveProgress = onMoveProgress;
@@ -53,25 +94,44 @@ public class FileMover {
         if (!sourceFile.exists()) {
             throw new IOException("Unexpected: Source file not found: " + sourceFile);
         }
+        String fileName = sourceFile.getName();
+        File destinationFile = new File(destinationDir, fileName);
+        if (isSameFileStore(sourceFile, destinationDir) && renameFile(sourceFile, destinationFile)) {
+            return;
+        }
+        File destinationTempFile = getDestinationTempFile(destinationDir, sourceFile);
         long destinationTotalSpace = destinationDir.getTotalSpace();
         long destinationAvailableSpace = destinationDir.getUsableSpace();
-        if (destinationTotalSpace > 0 && destinationAvailableSpace < sourceFile.length()) {
-            throw new IOException("Destination drive is out of space: available=" + destinationAvailableSpace / GB + " GB, required=" + sourceFile.length() / GB + " GB");
+        long requiredSpace = sourceFile.length() - (destinationTempFile.exists() ? destinationTempFile.length() : 0);
+        if (destinationTotalSpace > 0 && destinationAvailableSpace < requiredSpace) {
+            throw new IOException("Destination drive is out of space: available=" + destinationAvailableSpace / GB + " GB, required=" + requiredSpace / GB + " GB");
+        }
+        resumedBlocks = getResumableBlocks(sourceFile, destinationTempFile);
+        if (resumedBlocks.isEmpty() && reflinkFile(sourceFile, destinationTempFile)) {
+            log("Cloned file (reflink) " + sourceFile + " ==> " + destinationTempFile);
+        } else {
+            log("Copying file (size: " + (sourceFile.length() / GB) + " GB) " + sourceFile + " ==> " + destinationTempFile);
+            copyFile(sourceFile, destinationTempFile);
+            log("Validating file " + destinationTempFile);
+            try {
+                validateFile(sourceFile, destinationTempFile);
+            } catch (IOException ex) {
+                //invalid blocks are committed in the journal and would be skipped on resume, so start over
+                log("Deleting invalid file " + destinationTempFile);
+                destinationTempFile.delete();
+                if (journal != null) {
+                    journal.reset(sourceFile);
+                }
+                throw new ValidationException(ex.getMessage());
+            }
         }
-        String fileName = sourceFile.getName();
-        String tempFileName = fileName + ".moving";
-        File destinationTempFile = new File(destinationDir, tempFileName);
-        log("Copying file (size: " + (sourceFile.length() / GB) + " GB) " + sourceFile + " ==> " + destinationTempFile);
-        copyFile(sourceFile, destinationTempFile);
-        log("Validating file " + destinationTempFile);
-        validateFile(sourceFile, destinationTempFile);
-        File destinationFile = new File(destinationDir, fileName);
         log("Renaming file " + destinationTempFile + " ==> " + destinationFile);
         destinationTempFile.renameTo(destinationFile);
         if (!destinationFile.exists()) {
             throw new IOException("Unexpected: Destination file not found: " + destinationFile);
         }
         destinationFile.setLastModified(sourceFile.lastModified());
+        writeChecksumManifest(destinationFile);
         log("Deleting source file " + sourceFile);
         sourceFile.delete();
         if (sourceFile.exists()) {
@@ -79,62 +139,381 @@ public class FileMover {
         }
     }
 
-    @SuppressWarnings({"NestedAssignment", "UseSpecificCatch", "CallToPrintStackTrace", "SleepWhileInLoop"})
+    /**
+     * Get temp file the source file is copied to before it is renamed to its
+     * final name.
+     *
+     * @param destinationDir Destination directory
+     * @param sourceFile Source file
+     * @return Destination temp file
+     */
+    public static File getDestinationTempFile(File destinationDir, File sourceFile) {
+        return new File(destinationDir, sourceFile.getName() + ".moving");
+    }
+
+    /**
+     * Move file within the same filesystem by atomic rename - no copy and no
+     * validation needed.
+     *
+     * @return true if file has been moved, false if rename is not supported
+     */
+    private static boolean renameFile(File source, File destination) throws IOException {
+        log("Source and destination are on the same filesystem. Renaming file " + source + " ==> " + destination);
+        try {
+            Files.move(source.toPath(), destination.toPath(), ATOMIC_MOVE);
+            return true;
+        } catch (AtomicMoveNotSupportedException ex) {
+            log("Atomic rename is not supported (" + ex.getMessage() + "). Falling back to copy");
+            return false;
+        }
+    }
+
+    /**
+     * Find blocks copied to the destination temp file by an interrupted
+     * earlier attempt. Stream copy mode is not resumable. In checksum mode
+     * only blocks with known checksum are resumed.
+     */
+    private Map<Integer, OptionalLong> getResumableBlocks(File source, File destination) {
+        if (journal == null || copyMode == CopyMode.STREAM || !destination.exists()) {
+            return Collections.emptyMap();
+        }
+        long fileSize = source.length();
+        Map<Integer, OptionalLong> result = journal.getCommittedBlocks(source, destination, fileSize);
+        result.entrySet().removeIf(e -> Math.min((e.getKey() + 1) * FileChecksum.BLOCK_SIZE, fileSize) > destination.length()
+                || (validationMode == ValidationMode.CHECKSUM && !e.getValue().isPresent()));
+        return result;
+    }
+
     private void copyFile(File source, File destination) throws IOException, InterruptedException {
-        long fileSize = sourceFile.length();
-        boolean unfinishedNeedToCleanup = false;
-        try (InputStream is = new FileInputStream(source); OutputStream os = new FileOutputStream(destination)) {
-            long copiedBytes = 0;
-            long nextProgressToPrintPercent = PRINT_PROGRESS_STEP_PERCENT;
-            up:
-            for (int n = is.read(buffer); n > 0; n = is.read(buffer)) {
-                while (paused.get()) {
-                    Thread.sleep(50);
-                    if (interrupted.get()) {
-                        log("Interrupted at file copy on pause. Cleaning up...");
-                        unfinishedNeedToCleanup = true;
-                        break up;
+        nextProgressToPrintPercent = PRINT_PROGRESS_STEP_PERCENT;
+        sourceChecksum = validationMode == ValidationMode.CHECKSUM ? new FileChecksum(source.length()) : null;
+        if (resumedBlocks.isEmpty()) {
+            if (journal != null) {
+                journal.started(source, destination, source.length());
+            }
+        } else {
+            log("Resuming copy of " + source + ": " + resumedBlocks.size() + " blocks of " + FileChecksum.BLOCK_SIZE / GB + " GB already copied");
+            if (sourceChecksum != null) {
+                resumedBlocks.forEach((block, checksum) -> sourceChecksum.restoreBlock(block, checksum.getAsLong()));
+            }
+        }
+        if (copyMode == CopyMode.DIRECT && !getDirectOpenOption().isPresent()) {
+            log("Direct I/O is not supported by this Java version. Copying through page cache: " + source);
+        }
+        boolean completed;
+        if (copyMode == CopyMode.STREAM) {
+            completed = copyFileStream(source, destination);
+        } else if (streams > 1 && source.length() > FileChecksum.BLOCK_SIZE) {
+            completed = copyFileParallel(source, destination);
+        } else {
+            completed = copyFileChannel(source, destination);
+        }
+        if (!completed) {
+            if (journal != null && copyMode != CopyMode.STREAM) {
+                log("Keeping unfinished file to resume later: " + destination.getAbsolutePath());
+            } else {
+                log("Deleting unfinished file: " + destination.getAbsolutePath());
+                destination.delete();
+            }
+            throw new InterruptedException("Ctrl-C Interruption");
+        }
+    }
+
+    /**
+     * Copy file with FileChannel in chunks of TRANSFER_CHUNK_SIZE. Without
+     * checksum validation and direct I/O the kernel-side transferTo is used,
+     * so the data never enters the JVM.
+     *
+     * @return false if copy has been interrupted
+     */
+    private boolean copyFileChannel(File source, File destination) throws IOException, InterruptedException {
+        long fileSize = source.length();
+        if (resumedBlocks.isEmpty()) {
+            //create empty file
+            FileChannel.open(destination.toPath(), CREATE, WRITE, TRUNCATE_EXISTING).close();
+        }
+        if (copyMode == CopyMode.DIRECT) {
+            preallocate(destination, fileSize);
+        }
+        return copyRange(source, destination, 0, fileSize, fileSize, new AtomicLong(), new AtomicBoolean());
+    }
+
+    /**
+     * Copy file with several concurrent streams. Destination file is
+     * preallocated to the full size and each stream writes its own range of
+     * checksum blocks at positional offsets.
+     *
+     * @return false if copy has been interrupted
+     */
+    private boolean copyFileParallel(File source, File destination) throws IOException, InterruptedException {
+        long fileSize = source.length();
+        preallocate(destination, fileSize);
+        long blocks = (fileSize + FileChecksum.BLOCK_SIZE - 1) / FileChecksum.BLOCK_SIZE;
+        long rangeSize = (blocks + streams - 1) / streams * FileChecksum.BLOCK_SIZE;
+        log("Copying file " + sourceFile + " with " + streams + " streams");
+        AtomicLong copiedBytes = new AtomicLong();
+        AtomicBoolean stopped = new AtomicBoolean();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        try {
+            for (long start = 0; start < fileSize; start += rangeSize) {
+                long from = start;
+                long to = Math.min(start + rangeSize, fileSize);
+                FutureTask<Boolean> task = new FutureTask<>(() -> copyRange(source, destination, from, to, fileSize, copiedBytes, stopped));
+                futures.add(task);
+                IO_STREAMS.execute(task);
+            }
+            boolean completed = true;
+            for (Future<Boolean> f : futures) {
+                try {
+                    if (!f.get()) {
+                        completed = false;
+                        stopped.set(true);
                     }
+                } catch (ExecutionException ex) {
+                    stopped.set(true);
+                    throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
                 }
-                os.write(buffer, 0, n);
-                copiedBytes += n;
-                if (onMoveProgress != null) {
-                    onMoveProgress.accept(copiedBytes);
+            }
+            return completed;
+        } finally {
+            stopped.set(true);
+            //wait for streams to stop, so none writes after the copy has returned
+            long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+            for (Future<Boolean> f : futures) {
+                try {
+                    f.get(Math.max(1, timeout - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException ex) {
+                    //already reported or abandoned
+                }
+            }
+        }
+    }
+
+    /**
+     * Set destination file length to the full size up front. On NTFS this
+     * allocates the clusters, so running out of space fails the move
+     * immediately. Linux file systems only set the length and create a sparse
+     * file, as Java has no fallocate, so there is no early out of space
+     * guarantee and the free space check before the copy is the only guard.
+     */
+    private static void preallocate(File destination, long fileSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(destination, "rw")) {
+            raf.setLength(fileSize);
+        }
+    }
+
+    /**
+     * Copy block aligned range of the file. Blocks copied by an earlier
+     * attempt are skipped. Every completed block is forced to disk and
+     * committed to the move journal. In direct I/O mode all transfers are
+     * page aligned, except the unaligned file tail which goes through regular
+     * channels.
+     *
+     * @return false if copy has been interrupted
+     */
+    private boolean copyRange(File source, File destination, long from, long to, long fileSize, AtomicLong copiedBytes, AtomicBoolean stopped) throws IOException, InterruptedException {
+        boolean direct = copyMode == CopyMode.DIRECT && getDirectOpenOption().isPresent();
+        OpenOption[] readOptions = direct ? new OpenOption[]{READ, getDirectOpenOption().get()} : new OpenOption[]{READ};
+        OpenOption[] writeOptions = direct ? new OpenOption[]{WRITE, getDirectOpenOption().get()} : new OpenOption[]{WRITE};
+        ByteBuffer buffer = sourceChecksum != null || copyMode == CopyMode.DIRECT ? bufferPool.lease() : null;
+        long unsyncedBytes = 0;
+        try (FileChannel in = FileChannel.open(source.toPath(), readOptions); FileChannel out = FileChannel.open(destination.toPath(), writeOptions)) {
+            out.position(from);
+            for (long position = from; position < to;) {
+                if (stopped.get() || !waitWhilePaused()) {
+                    return false;
                 }
-                long percent = copiedBytes * 100 / fileSize;
-                if (percent >= nextProgressToPrintPercent) {
-                    log("Copying file " + sourceFile + ": " + nextProgressToPrintPercent + "%");
-                    nextProgressToPrintPercent += PRINT_PROGRESS_STEP_PERCENT;
+                int block = (int) (position / FileChecksum.BLOCK_SIZE);
+                long blockEnd = Math.min((block + 1) * FileChecksum.BLOCK_SIZE, to);
+                boolean resumed = resumedBlocks.containsKey(block);
+                long n;
+                if (resumed) {
+                    n = blockEnd - position;
+                    out.position(blockEnd);
+                } else if (direct && blockEnd - position < BufferPool.PAGE_SIZE) {
+                    n = transferTail(source, destination, position, blockEnd - position);
+                } else {
+                    long count = Math.min(TRANSFER_CHUNK_SIZE, blockEnd - position);
+                    n = transferChunk(in, position, direct ? count - count % BufferPool.PAGE_SIZE : count, out, buffer);
+                    throttle(n);
+                    unsyncedBytes += n;
+                    if (syncInterval > 0 && unsyncedBytes >= syncInterval) {
+                        //shape writeback instead of letting dirty pages pile up
+                        out.force(false);
+                        unsyncedBytes = 0;
+                    }
                 }
-                if (copyThrottle > 0) {
-                    Thread.sleep(copyThrottle);
+                position += n;
+                if (!resumed && position == blockEnd) {
+                    commitBlock(out, block);
                 }
-                if (interrupted.get()) {
-                    log("Interrupted at file copy. Cleaning up...");
-                    unfinishedNeedToCleanup = true;
-                    break;
+                if (!onBytesCopied(copiedBytes.addAndGet(n), fileSize)) {
+                    return false;
                 }
             }
+        } finally {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+            }
         }
-        if (unfinishedNeedToCleanup) {
-            log("Deleting unfinished file: " + destination.getAbsolutePath());
-            destination.delete();
-            throw new InterruptedException("Ctrl-C Interruption");
+        return true;
+    }
+
+    /**
+     * Fallback sequential copy through FileInputStream/FileOutputStream with
+     * plain read/write calls via a pooled buffer.
+     *
+     * @return false if copy has been interrupted
+     */
+    private boolean copyFileStream(File source, File destination) throws IOException, InterruptedException {
+        long fileSize = source.length();
+        ByteBuffer buffer = bufferPool.lease();
+        try (FileInputStream is = new FileInputStream(source); FileOutputStream os = new FileOutputStream(destination)) {
+            ReadableByteChannel in = is.getChannel();
+            WritableByteChannel out = os.getChannel();
+            long copiedBytes = 0;
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                if (!waitWhilePaused()) {
+                    return false;
+                }
+                buffer.flip();
+                if (sourceChecksum != null) {
+                    sourceChecksum.update(copiedBytes, buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                copiedBytes += n;
+                throttle(n);
+                if (!onBytesCopied(copiedBytes, fileSize)) {
+                    return false;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Copy the unaligned tail of the file that cannot be transferred with
+     * direct I/O.
+     *
+     * @return number of bytes transferred
+     */
+    private long transferTail(File source, File destination, long position, long count) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), READ); FileChannel out = FileChannel.open(destination.toPath(), WRITE)) {
+            out.position(position);
+            long n = transferChunk(in, position, count, out, ByteBuffer.allocate(BufferPool.PAGE_SIZE));
+            out.force(false);
+            return n;
+        }
+    }
+
+    private void commitBlock(FileChannel out, int block) throws IOException {
+        if (journal != null) {
+            out.force(false);
+            journal.blockCommitted(sourceFile, block, sourceChecksum != null ? OptionalLong.of(sourceChecksum.getBlockValue(block)) : OptionalLong.empty());
+        }
+    }
+
+    /**
+     * Transfer up to count bytes from the source position to the current
+     * position of the destination channel. When buffer is provided, data goes
+     * through the buffer and the checksum, if calculated, is updated on the
+     * fly.
+     *
+     * @return number of bytes transferred
+     */
+    private long transferChunk(FileChannel in, long position, long count, FileChannel out, ByteBuffer buffer) throws IOException {
+        long n;
+        if (buffer == null) {
+            n = in.transferTo(position, count, out);
+        } else {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            n = in.read(buffer, position);
+            if (n > 0) {
+                buffer.flip();
+                if (sourceChecksum != null) {
+                    sourceChecksum.update(position, buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+        if (n <= 0) {
+            throw new IOException("Unexpected: Source file transfer stalled at position " + position + ": " + sourceFile);
+        }
+        return n;
+    }
+
+    private void throttle(long bytes) throws InterruptedException {
+        for (RateLimiter rateLimiter : rateLimiters) {
+            rateLimiter.acquire(bytes);
+        }
+    }
+
+    @SuppressWarnings("SleepWhileInLoop")
+    private boolean waitWhilePaused() throws InterruptedException {
+        while (paused.get()) {
+            Thread.sleep(50);
+            if (interrupted.get()) {
+                log("Interrupted at file copy on pause. Cleaning up...");
+                return false;
+            }
         }
+        return true;
     }
 
-    private static void validateFile(File source, File destination) throws IOException {
+    private boolean onBytesCopied(long copiedBytes, long fileSize) throws InterruptedException {
+        synchronized (this) {
+            if (onMoveProgress != null) {
+                onMoveProgress.accept(copiedBytes);
+            }
+            long percent = copiedBytes * 100 / fileSize;
+            if (percent >= nextProgressToPrintPercent) {
+                log("Copying file " + sourceFile + ": " + nextProgressToPrintPercent + "%");
+                nextProgressToPrintPercent += PRINT_PROGRESS_STEP_PERCENT;
+            }
+        }
+        if (interrupted.get()) {
+            log("Interrupted at file copy. Cleaning up...");
+            return false;
+        }
+        return true;
+    }
+
+    private void validateFile(File source, File destination) throws IOException, InterruptedException {
         if (!destination.exists()) {
             throw new IOException("Unexpected: Destination temp file not found: " + destination);
         }
         if (destination.length() != source.length()) {
             throw new IOException("Unexpected: Destination temp file size mismatch: " + destination.length() + " <> " + source.length());
         }
-        if (!selectiveCompareFiles(source, destination, SELECTIVE_CHECK_SECTORS, SELECTIVE_CHECK_SECTOR_SIZE)) {
+        if (sourceChecksum != null) {
+            int block = FileChecksum.calculate(destination, streams, bufferPool).mismatch(sourceChecksum);
+            if (block >= 0) {
+                throw new IOException("Destination file checksum mismatch at block " + block + " (offset " + block * FileChecksum.BLOCK_SIZE + ")");
+            }
+        } else if (!selectiveCompareFiles(source, destination, SELECTIVE_CHECK_SECTORS, SELECTIVE_CHECK_SECTOR_SIZE)) {
             throw new IOException("Destination file validation failed");
         }
     }
 
+    @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
+    private void writeChecksumManifest(File destinationFile) {
+        if (sourceChecksum != null) {
+            try {
+                sourceChecksum.writeManifest(destinationFile);
+            } catch (Exception ex) {
+                log("Cannot write checksum manifest for " + destinationFile + ": " + ex.getClass() + ": " + ex.getMessage());
+            }
+        }
+    }
+
     private static boolean selectiveCompareFiles(File file1, File file2, int checkSectors, int sectorSize) throws IOException {
         if (!file1.isFile() || !file2.isFile()) {
             log("Unexpected ERROR: Source or restination file doesn't exist");
@@ -162,4 +541,51 @@ public class FileMover {
         }
         return true;
     }
+
+    /**
+     * Copied file failed validation. The destination temp file is deleted and
+     * the move can be retried from scratch.
+     */
+    public static class ValidationException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ValidationException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * File copy engine.
+     */
+    public enum CopyMode {
+        /**
+         * Chunked FileChannel.transferTo (default).
+         */
+        CHANNEL,
+        /**
+         * Sequential FileInputStream/FileOutputStream read/write copy.
+         */
+        STREAM,
+        /**
+         * FileChannel with direct I/O bypassing the OS page cache, through
+         * aligned buffers into a preallocated destination file.
+         */
+        DIRECT
+    }
+
+    /**
+     * Copied file validation method.
+     */
+    public enum ValidationMode {
+        /**
+         * Full-file CRC32 calculated while copying, then verified by a single
+         * sequential pass over destination (default).
+         */
+        CHECKSUM,
+        /**
+         * Compare a number of sample sectors of source and destination.
+         */
+        SAMPLE
+    }
 }
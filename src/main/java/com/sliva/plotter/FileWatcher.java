@@ -0,0 +1,109 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import static com.sliva.plotter.LoggerUtil.log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Watches directories for created, deleted and modified entries on a
+ * background daemon thread and reports the changed files to the listener. On
+ * event overflow the watched directory itself is reported.
+ *
+ * @author Sliva Co
+ */
+public class FileWatcher implements AutoCloseable {
+
+    private final Consumer<File> listener;
+    private final WatchService watchService;
+    private final Map<WatchKey, File> watchedKeys = new HashMap<>();
+    private final Set<File> registered = new HashSet<>();
+
+    /**
+     * Create and start file watcher.
+     *
+     * @param listener Consumer of changed files, called on the watcher thread
+     * @throws IOException if watch service can't be created
+     */
+    public FileWatcher(Consumer<File> listener) throws IOException {
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread t = new Thread(this::run, "file-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Start watching directory. Each directory is attempted once, until it is
+     * deleted, so the method can be called repeatedly for the same set of
+     * directories. Directories that can't be watched are left to polling.
+     *
+     * @param dir Directory to watch
+     */
+    public void register(File dir) {
+        File absDir = dir.getAbsoluteFile();
+        synchronized (watchedKeys) {
+            if (!registered.add(absDir)) {
+                return;
+            }
+            try {
+                watchedKeys.put(absDir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), absDir);
+            } catch (IOException | UnsupportedOperationException ex) {
+                log("FileWatcher: Cannot watch " + absDir + ": " + ex.getClass().getSimpleName() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
+    private void run() {
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                File dir;
+                synchronized (watchedKeys) {
+                    dir = watchedKeys.get(key);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir != null) {
+                        try {
+                            listener.accept(event.kind() == OVERFLOW ? dir : new File(dir, ((Path) event.context()).toString()));
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    //directory is deleted or its volume is removed
+                    synchronized (watchedKeys) {
+                        watchedKeys.remove(key);
+                        registered.remove(dir);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //exit
+        }
+    }
+}
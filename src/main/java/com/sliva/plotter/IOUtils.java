@@ -5,16 +5,22 @@ package com.sliva.plotter;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.stream.Stream;
@@ -26,6 +32,7 @@ import java.util.stream.Stream;
 public final class IOUtils {
 
     public static final boolean IS_WINDOWS_OS = Optional.ofNullable(System.getProperty("os.name")).map(n -> n.toLowerCase().startsWith("windows")).orElse(false);
+    public static final boolean IS_LINUX_OS = Optional.ofNullable(System.getProperty("os.name")).map(n -> n.toLowerCase().startsWith("linux")).orElse(false);
 
     public static final int KB = 1024;
     public static final int MB = KB * KB;
@@ -79,6 +86,120 @@ public final class IOUtils {
         return result;
     }
 
+    /**
+     * Check if two paths reside on the same filesystem, so a file can be
+     * renamed from one to another without copying.
+     *
+     * @param file1 First path
+     * @param file2 Second path
+     * @return true if both paths belong to the same file store
+     */
+    public static boolean isSameFileStore(File file1, File file2) {
+        Optional<FileStore> store1 = getFileStore(file1);
+        return store1.isPresent() && store1.equals(getFileStore(file2));
+    }
+
+    /**
+     * Get filesystem the path resides on. Scans the mount table, so callers
+     * comparing many paths should resolve each one once.
+     *
+     * @param file Path
+     * @return Optional file store, empty if the path can't be resolved
+     */
+    public static Optional<FileStore> getFileStore(File file) {
+        try {
+            return Optional.of(Files.getFileStore(file.toPath()));
+        } catch (IOException ex) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Clone file using copy-on-write reflink (btrfs, XFS). Supported on Linux
+     * only. Fails without copying if the filesystem doesn't support reflinks
+     * or files are on different filesystems.
+     *
+     * @param source Source file
+     * @param destination Destination file to create
+     * @return true if file has been cloned
+     * @throws InterruptedException if interrupted while waiting for the clone
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    public static boolean reflinkFile(File source, File destination) throws InterruptedException {
+        if (!IS_LINUX_OS) {
+            return false;
+        }
+        try {
+            Process p = new ProcessBuilder("cp", "--reflink=always", source.getAbsolutePath(), destination.getAbsolutePath())
+                    .redirectErrorStream(true)
+                    .start();
+            try (InputStream stdout = p.getInputStream()) {
+                while (stdout.read() != -1) {
+                    //discard output
+                }
+            }
+            if (p.waitFor() == 0 && destination.length() == source.length()) {
+                return true;
+            }
+        } catch (IOException ex) {
+            //cp not available - fall through
+        }
+        destination.delete();
+        return false;
+    }
+
+    /**
+     * Allocate direct buffer aligned to the memory page boundary. Alignment
+     * requires Java 9+ (ByteBuffer.alignedSlice), on Java 8 a regular direct
+     * buffer is returned.
+     *
+     * @param capacity Buffer capacity, multiple of alignment
+     * @param alignment Alignment, power of 2
+     * @return direct buffer
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    public static ByteBuffer allocateAlignedDirect(int capacity, int alignment) {
+        if (ALIGNED_SLICE_METHOD != null) {
+            try {
+                ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE_METHOD.invoke(ByteBuffer.allocateDirect(capacity + alignment), alignment);
+                aligned.limit(capacity);
+                return aligned.slice();
+            } catch (Exception ex) {
+                //fall through
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+    private static final Method ALIGNED_SLICE_METHOD = getMethod(ByteBuffer.class, "alignedSlice", int.class);
+
+    /**
+     * Get open option for direct I/O bypassing the OS page cache
+     * (com.sun.nio.file.ExtendedOpenOption.DIRECT). Available on Java 10+.
+     *
+     * @return Optional of the DIRECT open option
+     */
+    public static Optional<OpenOption> getDirectOpenOption() {
+        return DIRECT_OPEN_OPTION;
+    }
+    private static final Optional<OpenOption> DIRECT_OPEN_OPTION = getEnumOpenOption("com.sun.nio.file.ExtendedOpenOption", "DIRECT");
+
+    @SuppressWarnings({"unchecked", "rawtypes", "UseSpecificCatch"})
+    private static Optional<OpenOption> getEnumOpenOption(String className, String name) {
+        try {
+            return Optional.of((OpenOption) Enum.valueOf((Class<? extends Enum>) Class.forName(className), name));
+        } catch (Exception ex) {
+            return Optional.empty();
+        }
+    }
+
+    private static Method getMethod(Class<?> cls, String name, Class<?>... parameterTypes) {
+        try {
+            return cls.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
     @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
     public static boolean isNetworkDrive(String path) {
         if (path == null || !IS_WINDOWS_OS) {
@@ -108,8 +229,34 @@ public final class IOUtils {
         return false;
     }
 
+    /**
+     * Check whether the root is a network drive, probing it on the first call.
+     * The probe may start a process, so it runs outside of the cache map and
+     * must not be called on the scheduler thread.
+     *
+     * @param root File system root
+     * @return true if network drive
+     */
     public static boolean isNetworkDriveCached(File root) {
-        return isNetworkDriveCache.computeIfAbsent(root, k -> IOUtils.isNetworkDrive(k.getAbsolutePath()));
+        Boolean result = isNetworkDriveCache.get(root);
+        if (result == null) {
+            boolean network = isNetworkDrive(root.getAbsolutePath());
+            result = isNetworkDriveCache.putIfAbsent(root, network);
+            if (result == null) {
+                result = network;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get cached network drive flag without probing.
+     *
+     * @param root File system root
+     * @return Network drive flag or empty if the root has not been probed yet
+     */
+    public static Optional<Boolean> getNetworkDriveCached(File root) {
+        return Optional.ofNullable(isNetworkDriveCache.get(root));
     }
 
     /**
@@ -119,16 +266,9 @@ public final class IOUtils {
      */
     public static void updateNetworkDriveCache(File[] listRoots) {
         Set<File> rootsSet = new HashSet<>(Arrays.asList(listRoots));
-        synchronized (isNetworkDriveCache) {
-            for (Iterator<Map.Entry<File, Boolean>> i = isNetworkDriveCache.entrySet().iterator(); i.hasNext();) {
-                Map.Entry<File, Boolean> e = i.next();
-                if (!rootsSet.contains(e.getKey())) {
-                    i.remove();
-                }
-            }
-        }
+        isNetworkDriveCache.keySet().retainAll(rootsSet);
     }
-    private static final Map<File, Boolean> isNetworkDriveCache = new HashMap<>();
+    private static final Map<File, Boolean> isNetworkDriveCache = new ConcurrentHashMap<>();
 
     /**
      * Check if newData is differ from oldData.If so, update oldData with
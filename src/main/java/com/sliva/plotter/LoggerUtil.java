@@ -3,20 +3,80 @@
  */
 package com.sliva.plotter;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Asynchronous logger. Callers only enqueue the message with its timestamp.
+ * A single writer thread formats queued messages in batches and writes them
+ * to the console and to a rolling log file. When the queue is full new
+ * messages are dropped and counted, so logging never blocks the caller.
  *
  * @author Sliva Co
  */
 public final class LoggerUtil {
 
     public static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT);
+    private static final int MAX_QUEUED = 10_000;
+    private static final long FLUSH_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final File LOG_FILE = new File("plotter-manager.log");
+    private static final long MAX_LOG_FILE_SIZE = 10 * IOUtils.MB;
+    private static final int MAX_LOG_FILES = 5;
+    private static final long LOG_FILE_RETRY_PERIOD_MILLIS = 10_000;
+
+    private static final Queue<Record> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger QUEUED = new AtomicInteger();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Thread WRITER = new Thread(LoggerUtil::runWriter, "logger");
+    private static OutputStream logFileOut;
+    private static long logFileSize;
+    //time of the last failed log file write, 0 while the log file is writable
+    private static long logFileFailedTimestamp;
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(LoggerUtil::flush, "logger-shutdown"));
+    }
+
+    private LoggerUtil() {
+    }
 
     public static void log(String message) {
-        System.out.println(getTimestampString() + " " + message);
+        int queued = QUEUED.incrementAndGet();
+        if (queued > MAX_QUEUED) {
+            QUEUED.decrementAndGet();
+            DROPPED.incrementAndGet();
+            return;
+        }
+        QUEUE.offer(new Record(System.currentTimeMillis(), message));
+        if (queued == MAX_QUEUED / 2) {
+            //burst, don't wait for the flush period
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * @return Number of messages dropped on a full queue
+     */
+    public static long getDroppedCount() {
+        return DROPPED.get();
     }
 
     public static String format(long value) {
@@ -24,10 +84,130 @@ public final class LoggerUtil {
     }
 
     public static String getTimestampString() {
-        return getTimestampString(new Date());
+        return TIMESTAMP_FORMATTER.format(LocalDateTime.now());
     }
 
     public static String getTimestampString(Date d) {
-        return new SimpleDateFormat(DATE_FORMAT).format(d);
+        return TIMESTAMP_FORMATTER.format(LocalDateTime.ofInstant(d.toInstant(), ZoneId.systemDefault()));
+    }
+
+    /**
+     * Append current timestamp without creating an intermediate string.
+     *
+     * @param sb Target buffer
+     * @return the buffer
+     */
+    public static StringBuilder appendTimestamp(StringBuilder sb) {
+        TIMESTAMP_FORMATTER.formatTo(LocalDateTime.now(), sb);
+        return sb;
+    }
+
+    @SuppressWarnings("CallToPrintStackTrace")
+    private static void runWriter() {
+        boolean errorReported = false;
+        for (;;) {
+            try {
+                if (QUEUE.isEmpty()) {
+                    LockSupport.parkNanos(FLUSH_PERIOD_NANOS);
+                }
+                flush();
+            } catch (RuntimeException ex) {
+                //the only writer thread must keep draining the queue
+                if (!errorReported) {
+                    errorReported = true;
+                    System.err.println("LoggerUtil: Error writing log messages, further errors are not reported");
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all queued messages. Called by the writer thread and by the
+     * shutdown hook, so pending messages are not lost on exit.
+     */
+    private static synchronized void flush() {
+        StringBuilder sb = new StringBuilder();
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) {
+            appendTimestamp(sb).append(" LoggerUtil: ").append(dropped).append(" messages dropped").append(System.lineSeparator());
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        for (Record r = QUEUE.poll(); r != null; r = QUEUE.poll()) {
+            QUEUED.decrementAndGet();
+            TIMESTAMP_FORMATTER.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(r.timestamp), zone), sb);
+            sb.append(' ').append(r.message).append(System.lineSeparator());
+        }
+        if (sb.length() == 0) {
+            return;
+        }
+        System.out.print(sb);
+        System.out.flush();
+        if (logFileFailedTimestamp != 0 && System.currentTimeMillis() - logFileFailedTimestamp < LOG_FILE_RETRY_PERIOD_MILLIS) {
+            //log file is off after a failure, messages go to the console only
+            return;
+        }
+        try {
+            writeLogFile(sb.toString().getBytes(StandardCharsets.UTF_8));
+            if (logFileFailedTimestamp != 0) {
+                logFileFailedTimestamp = 0;
+                System.err.println("LoggerUtil: Log file is writable again: " + LOG_FILE.getAbsolutePath());
+            }
+        } catch (IOException ex) {
+            if (logFileFailedTimestamp == 0) {
+                System.err.println("LoggerUtil: Cannot write log file " + LOG_FILE.getAbsolutePath() + ": " + ex.getClass() + ": " + ex.getMessage()
+                        + ". Logging to console only until it is writable again");
+            }
+            logFileFailedTimestamp = System.currentTimeMillis();
+            closeLogFile();
+        }
+    }
+
+    private static void closeLogFile() {
+        if (logFileOut != null) {
+            try {
+                logFileOut.close();
+            } catch (IOException ex) {
+                //already failed
+            }
+            logFileOut = null;
+        }
+    }
+
+    private static void writeLogFile(byte[] data) throws IOException {
+        if (logFileOut != null && logFileSize + data.length > MAX_LOG_FILE_SIZE) {
+            logFileOut.close();
+            logFileOut = null;
+            rollLogFiles();
+        }
+        if (logFileOut == null) {
+            logFileOut = new FileOutputStream(LOG_FILE, true);
+            logFileSize = LOG_FILE.length();
+        }
+        logFileOut.write(data);
+        logFileOut.flush();
+        logFileSize += data.length;
+    }
+
+    /**
+     * Shift <code>log.N</code> files up by one, dropping the oldest.
+     */
+    private static void rollLogFiles() {
+        new File(LOG_FILE.getPath() + "." + MAX_LOG_FILES).delete();
+        for (int i = MAX_LOG_FILES - 1; i >= 1; i--) {
+            new File(LOG_FILE.getPath() + "." + i).renameTo(new File(LOG_FILE.getPath() + "." + (i + 1)));
+        }
+        LOG_FILE.renameTo(new File(LOG_FILE.getPath() + ".1"));
+    }
+
+    private static class Record {
+
+        private final long timestamp;
+        private final String message;
+
+        private Record(long timestamp, String message) {
+            this.timestamp = timestamp;
+            this.message = message;
+        }
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Embedded HTTP server exposing metrics in Prometheus text format on
+ * <code>/metrics</code>. Metric values are collected on every scrape.
+ *
+ * @author Sliva Co
+ */
+public class MetricsServer implements AutoCloseable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Create and start metrics server.
+     *
+     * @param port HTTP port
+     * @param collector Writes current metric values
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsServer(int port, Consumer<Writer> collector) throws IOException {
+        this.port = port;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                Writer writer = new Writer();
+                collector.accept(writer);
+                byte[] body = writer.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        //not stopped by the server
+        executor.shutdownNow();
+    }
+
+    /**
+     * Prometheus text format writer. HELP and TYPE lines are written once per
+     * metric name, so samples of a metric must be written together.
+     */
+    public static class Writer {
+
+        private final StringBuilder sb = new StringBuilder();
+        private final Set<String> described = new HashSet<>();
+
+        /**
+         * Write gauge sample.
+         *
+         * @param name Metric name
+         * @param help Metric description
+         * @param value Sample value
+         * @param labels Label names and values, alternating
+         */
+        public void gauge(String name, String help, double value, String... labels) {
+            sample("gauge", name, help, name, value, labels);
+        }
+
+        /**
+         * Write counter sample.
+         *
+         * @param name Metric name, should end with <code>_total</code>
+         * @param help Metric description
+         * @param value Sample value
+         * @param labels Label names and values, alternating
+         */
+        public void counter(String name, String help, double value, String... labels) {
+            sample("counter", name, help, name, value, labels);
+        }
+
+        /**
+         * Write histogram samples.
+         *
+         * @param name Metric name
+         * @param help Metric description
+         * @param histogram Histogram to write
+         */
+        public void histogram(String name, String help, Histogram histogram) {
+            long[] counts;
+            double sum;
+            synchronized (histogram) {
+                counts = histogram.counts.clone();
+                sum = histogram.sum;
+            }
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += counts[i];
+                sample("histogram", name, help, name + "_bucket", cumulative, "le", format(histogram.bounds[i]));
+            }
+            cumulative += counts[histogram.bounds.length];
+            sample("histogram", name, help, name + "_bucket", cumulative, "le", "+Inf");
+            sample("histogram", name, help, name + "_sum", sum);
+            sample("histogram", name, help, name + "_count", cumulative);
+        }
+
+        private void sample(String type, String name, String help, String sampleName, double value, String... labels) {
+            if (described.add(name)) {
+                sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+            sb.append(sampleName);
+            if (labels.length > 0) {
+                sb.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    sb.append(i > 0 ? "," : "").append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+                }
+                sb.append('}');
+            }
+            sb.append(' ').append(format(value)).append('\n');
+        }
+
+        private static String escape(String s) {
+            return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static String format(double value) {
+            return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Histogram with fixed bucket upper bounds.
+     */
+    public static class Histogram {
+
+        private final double[] bounds;
+        private final long[] counts;
+        private double sum;
+
+        public Histogram(double... bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new long[bounds.length + 1];
+        }
+
+        public synchronized void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i]++;
+            sum += value;
+        }
+    }
+}
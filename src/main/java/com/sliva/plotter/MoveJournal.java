@@ -0,0 +1,248 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Append-only journal of pending and in-flight moves. Every record is a tab
+ * separated line:
+ * <pre>
+ * QUEUED  &lt;source&gt; &lt;queue&gt;
+ * START   &lt;source&gt; &lt;destination temp file&gt; &lt;size&gt;
+ * BLOCK   &lt;source&gt; &lt;block index&gt; &lt;block CRC32 or -&gt;
+ * RESET   &lt;source&gt;
+ * DONE    &lt;source&gt;
+ * </pre> A BLOCK record is written only after the block data has been forced
+ * to the destination disk, so on restart a copy can be resumed skipping all
+ * committed blocks. A RESET record drops the partial copy of a move that
+ * stays queued, i.e. after the copy failed validation.
+ *
+ * @author Sliva Co
+ */
+public class MoveJournal {
+
+    private static final String QUEUED = "QUEUED";
+    private static final String START = "START";
+    private static final String BLOCK = "BLOCK";
+    private static final String RESET = "RESET";
+    private static final String DONE = "DONE";
+    private static final String NO_CHECKSUM = "-";
+
+    private final File file;
+    private final Map<File, PendingMove> pendingMoves = new LinkedHashMap<>();
+
+    public MoveJournal(File file) {
+        this.file = file;
+    }
+
+    public synchronized void queued(File srcFile, String queueName) {
+        if (!pendingMoves.containsKey(srcFile)) {
+            pendingMoves.put(srcFile, new PendingMove(srcFile, queueName));
+            append(QUEUED, srcFile.getAbsolutePath(), queueName);
+        }
+    }
+
+    public synchronized void started(File srcFile, File destinationTempFile, long fileSize) {
+        getPendingMove(srcFile).start(destinationTempFile, fileSize);
+        append(START, srcFile.getAbsolutePath(), destinationTempFile.getAbsolutePath(), Long.toString(fileSize));
+    }
+
+    public synchronized void blockCommitted(File srcFile, int block, OptionalLong checksum) {
+        getPendingMove(srcFile).committedBlocks.put(block, checksum);
+        append(BLOCK, srcFile.getAbsolutePath(), Integer.toString(block), checksum.isPresent() ? Long.toHexString(checksum.getAsLong()) : NO_CHECKSUM);
+    }
+
+    public synchronized void done(File srcFile) {
+        if (pendingMoves.remove(srcFile) != null) {
+            append(DONE, srcFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Drop the partial copy of a move, so it starts over. The move stays
+     * queued.
+     *
+     * @param srcFile Source file
+     */
+    public synchronized void reset(File srcFile) {
+        PendingMove pm = pendingMoves.get(srcFile);
+        if (pm != null) {
+            pm.reset();
+            append(RESET, srcFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get blocks already copied to the destination temp file by a previous
+     * attempt.
+     *
+     * @param srcFile Source file
+     * @param destinationTempFile Destination temp file
+     * @param fileSize Source file size
+     * @return Map of committed block index to the block checksum, or empty map
+     * if the previous attempt was to another destination or of another size
+     */
+    public synchronized Map<Integer, OptionalLong> getCommittedBlocks(File srcFile, File destinationTempFile, long fileSize) {
+        PendingMove pm = pendingMoves.get(srcFile);
+        if (pm == null || !destinationTempFile.equals(pm.destinationTempFile) || fileSize != pm.fileSize) {
+            return Collections.emptyMap();
+        }
+        return new HashMap<>(pm.committedBlocks);
+    }
+
+    /**
+     * Get destination directory of a partially copied file.
+     *
+     * @param srcFile Source file
+     * @return Optional destination directory
+     */
+    public synchronized Optional<File> getResumeDestination(File srcFile) {
+        PendingMove pm = pendingMoves.get(srcFile);
+        return pm == null || pm.committedBlocks.isEmpty() ? Optional.empty() : Optional.ofNullable(pm.destinationTempFile).map(File::getParentFile);
+    }
+
+    /**
+     * Load journal left by a previous run and compact it to unfinished moves
+     * only. Moves with the source file gone are dropped.
+     *
+     * @return Collection of unfinished moves
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    public synchronized Collection<PendingMove> load() {
+        pendingMoves.clear();
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                for (String s = in.readLine(); s != null; s = in.readLine()) {
+                    String a[] = s.split("\t");
+                    try {
+                        File srcFile = new File(a[1]);
+                        switch (a[0]) {
+                            case QUEUED:
+                                pendingMoves.putIfAbsent(srcFile, new PendingMove(srcFile, a[2]));
+                                break;
+                            case START:
+                                pendingMoves.computeIfAbsent(srcFile, f -> new PendingMove(f, null)).start(new File(a[2]), Long.parseLong(a[3]));
+                                break;
+                            case BLOCK:
+                                pendingMoves.computeIfAbsent(srcFile, f -> new PendingMove(f, null)).committedBlocks
+                                        .put(Integer.parseInt(a[2]), NO_CHECKSUM.equals(a[3]) ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(a[3], 16)));
+                                break;
+                            case RESET:
+                                Optional.ofNullable(pendingMoves.get(srcFile)).ifPresent(PendingMove::reset);
+                                break;
+                            case DONE:
+                                pendingMoves.remove(srcFile);
+                                break;
+                            default:
+                                log("Unknown record skipped: " + s);
+                        }
+                    } catch (Exception ex) {
+                        //torn write at the end of the journal
+                        log("Invalid record skipped: " + s);
+                    }
+                }
+            } catch (IOException ex) {
+                log("ERROR: " + ex.getClass() + " " + ex.getMessage());
+            }
+        }
+        pendingMoves.values().removeIf(pm -> !pm.srcFile.exists());
+        compact();
+        return new ArrayList<>(pendingMoves.values());
+    }
+
+    private void compact() {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        StringBuilder sb = new StringBuilder();
+        pendingMoves.values().forEach(pm -> {
+            sb.append(toRecord(QUEUED, pm.srcFile.getAbsolutePath(), pm.queueName));
+            if (pm.destinationTempFile != null) {
+                sb.append(toRecord(START, pm.srcFile.getAbsolutePath(), pm.destinationTempFile.getAbsolutePath(), Long.toString(pm.fileSize)));
+                pm.committedBlocks.forEach((block, checksum) -> sb.append(toRecord(BLOCK, pm.srcFile.getAbsolutePath(), Integer.toString(block),
+                        checksum.isPresent() ? Long.toHexString(checksum.getAsLong()) : NO_CHECKSUM)));
+            }
+        });
+        try {
+            Files.write(tmpFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING);
+        } catch (IOException ex) {
+            log("ERROR: Cannot compact journal: " + ex.getClass() + " " + ex.getMessage());
+        }
+    }
+
+    private PendingMove getPendingMove(File srcFile) {
+        return pendingMoves.computeIfAbsent(srcFile, f -> new PendingMove(f, null));
+    }
+
+    private void append(String... fields) {
+        try {
+            Files.write(file.toPath(), toRecord(fields).getBytes(StandardCharsets.UTF_8), WRITE, CREATE, APPEND);
+        } catch (IOException ex) {
+            log("ERROR: " + ex.getClass() + " " + ex.getMessage());
+        }
+    }
+
+    private static String toRecord(String... fields) {
+        return String.join("\t", fields) + System.lineSeparator();
+    }
+
+    private static void log(String s) {
+        LoggerUtil.log("MoveJournal: " + s);
+    }
+
+    public static class PendingMove {
+
+        private final File srcFile;
+        private final String queueName;
+        private File destinationTempFile;
+        private long fileSize;
+        private final Map<Integer, OptionalLong> committedBlocks = new HashMap<>();
+
+        private PendingMove(File srcFile, String queueName) {
+            this.srcFile = srcFile;
+            this.queueName = queueName != null ? queueName : "unknown";
+        }
+
+        public File getSrcFile() {
+            return srcFile;
+        }
+
+        public String getQueueName() {
+            return queueName;
+        }
+
+        public int getCommittedBlockCount() {
+            return committedBlocks.size();
+        }
+
+        private void start(File destinationTempFile, long fileSize) {
+            this.destinationTempFile = destinationTempFile;
+            this.fileSize = fileSize;
+            committedBlocks.clear();
+        }
+
+        private void reset() {
+            destinationTempFile = null;
+            fileSize = 0;
+            committedBlocks.clear();
+        }
+    }
+}
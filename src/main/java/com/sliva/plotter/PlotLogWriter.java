@@ -0,0 +1,139 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log file of a plot process kept open for the process lifetime. Lines are
+ * buffered and written when the buffer fills up or on the periodic flush, so
+ * a line costs no file open/close.
+ *
+ * @author Sliva Co
+ */
+public class PlotLogWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Duration FLUSH_PERIOD = Duration.ofSeconds(5);
+    private static final Set<PlotLogWriter> OPEN_WRITERS = Collections.synchronizedSet(new HashSet<>());
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "plot-log-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        FLUSHER.scheduleWithFixedDelay(PlotLogWriter::flushAll, FLUSH_PERIOD.toMillis(), FLUSH_PERIOD.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private File file;
+    private Writer writer;
+    private boolean closed;
+
+    /**
+     * Open log file for appending.
+     *
+     * @param file Log file
+     * @throws IOException if the file can't be opened
+     */
+    public PlotLogWriter(File file) throws IOException {
+        this.file = file;
+        open();
+        OPEN_WRITERS.add(this);
+    }
+
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Append text. Dropped if the file could not be reopened after rename.
+     *
+     * @param s Text
+     * @throws IOException on write error
+     */
+    public synchronized void append(CharSequence s) throws IOException {
+        if (writer != null) {
+            writer.append(s);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (!closed && writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Rename the log file. The file is closed for the rename, as an open file
+     * can't be renamed on Windows, and reopened under the new name. If it
+     * can't be reopened, the error is logged once and further lines are
+     * dropped.
+     *
+     * @param newFile New file name
+     * @return true if renamed
+     */
+    public synchronized boolean renameTo(File newFile) {
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            LoggerUtil.log("PlotLogWriter: Error closing log file " + file + ": " + ex.getMessage());
+        }
+        boolean renamed = file.renameTo(newFile);
+        if (renamed) {
+            file = newFile;
+        }
+        try {
+            open();
+        } catch (IOException ex) {
+            writer = null;
+            LoggerUtil.log("PlotLogWriter: Cannot reopen log file " + file + ", further plot output is not logged: " + ex.getMessage());
+        }
+        return renamed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        OPEN_WRITERS.remove(this);
+        closed = true;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath(), WRITE, CREATE, APPEND), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @SuppressWarnings("CallToPrintStackTrace")
+    private static void flushAll() {
+        PlotLogWriter[] writers;
+        synchronized (OPEN_WRITERS) {
+            writers = OPEN_WRITERS.toArray(new PlotLogWriter[0]);
+        }
+        for (PlotLogWriter w : writers) {
+            try {
+                w.flush();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
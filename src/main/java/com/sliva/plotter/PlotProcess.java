@@ -3,19 +3,17 @@
  */
 package com.sliva.plotter;
 
+import static com.sliva.plotter.AsyncUtil.CALLBACKS;
 import static com.sliva.plotter.AsyncUtil.asyncReadLines;
 import static com.sliva.plotter.IOUtils.deleteTempFiles;
-import static com.sliva.plotter.LoggerUtil.getTimestampString;
+import static com.sliva.plotter.LoggerUtil.appendTimestamp;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import static java.nio.file.StandardOpenOption.APPEND;
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -28,8 +26,8 @@ public class PlotProcess {
     public static final String TMP_FILE_EXT = ".tmp";
     public static final String EXEC_NAME = "chia.exe";
     public static final String LOG_DIR = "log";
-    public static final int PLOT_SIZE = 32;
-    public static final int BUCKETS = 128;
+    public static final int DEFAULT_PLOT_SIZE = 32;
+    public static final int DEFAULT_BUCKETS = 128;
 
     private static final String STARTING_PHASE = "Starting phase ";
     private static final String COMPUTING_TABLE = "Computing table ";
@@ -45,28 +43,36 @@ public class PlotProcess {
     private final boolean tmp2Dest;
     private final int memSize;
     private final int nThreads;
+    private final int buckets;
+    private final int plotSize;
     private final Consumer<PlotProcess> onComplete;
+    private final Consumer<PlotProcess> onPhaseChange;
     private final File logDir;
     private String id;
     private String resultFileName;
     private final long createTimestamp = System.currentTimeMillis();
-    private boolean started;
-    private boolean finished;
-    private int phase;
-    private int subPhase;
-    private int step;
+    private volatile boolean started;
+    private volatile boolean finished;
+    private final AtomicBoolean handedOff = new AtomicBoolean();
+    private volatile int phase;
+    private volatile int subPhase;
+    private volatile int step;
     private int stepAddition;
-    private File logFile;
+    private PlotLogWriter logWriter;
     private final StringBuilder outputBuffer = new StringBuilder();
+    private final StringBuilder lineBuilder = new StringBuilder();
 
-    public PlotProcess(String name, File tmpPath, File tmp2Path, boolean tmp2Dest, int memSize, int nThreads, Consumer<PlotProcess> onComplete) {
+    public PlotProcess(String name, File tmpPath, File tmp2Path, boolean tmp2Dest, int memSize, int nThreads, int buckets, int plotSize, Consumer<PlotProcess> onPhaseChange, Consumer<PlotProcess> onComplete) {
         this.name = name;
         this.tmpPath = new File(tmpPath, name);
         this.tmp2Path = tmp2Dest ? tmp2Path : new File(tmp2Path, name);
         this.tmp2Dest = tmp2Dest;
         this.memSize = memSize;
         this.nThreads = nThreads;
+        this.buckets = buckets;
+        this.plotSize = plotSize;
         this.onComplete = onComplete;
+        this.onPhaseChange = onPhaseChange;
         this.logDir = new File(LOG_DIR);
         this.logDir.mkdirs();
     }
@@ -87,6 +93,14 @@ public class PlotProcess {
         return tmp2Dest;
     }
 
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getPlotSize() {
+        return plotSize;
+    }
+
     public String getId() {
         return id;
     }
@@ -107,6 +121,25 @@ public class PlotProcess {
         return finished;
     }
 
+    /**
+     * The queue slot has already started the next plot, so completion of this
+     * one must not start another.
+     *
+     * @return true if handed off
+     */
+    public boolean isHandedOff() {
+        return handedOff.get();
+    }
+
+    /**
+     * Mark the process as handed off.
+     *
+     * @return true if the process was not handed off before
+     */
+    public boolean markHandedOff() {
+        return handedOff.compareAndSet(false, true);
+    }
+
     public int getPhase() {
         return phase;
     }
@@ -148,8 +181,8 @@ public class PlotProcess {
 
     private List<String> getCommandWithParams(File chiaExe) {
         return Arrays.asList(chiaExe.getAbsolutePath(), "plots", "create",
-                "-k", Integer.toString(PLOT_SIZE),
-                "-u", Integer.toString(BUCKETS),
+                "-k", Integer.toString(plotSize),
+                "-u", Integer.toString(buckets),
                 "-b", Integer.toString(memSize),
                 "-r", Integer.toString(nThreads),
                 "-t", getTmpPath().getAbsolutePath(),
@@ -161,8 +194,9 @@ public class PlotProcess {
         try {
             if (s == null) {
                 log("onOutput: Process finished. name=\"" + getName() + "\"");
+                closeLog();
                 finished = true;
-                CompletableFuture.runAsync(() -> onComplete.accept(this));
+                CompletableFuture.runAsync(() -> onComplete.accept(this), CALLBACKS);
             } else {
                 processStdOutLine(s);
             }
@@ -182,61 +216,103 @@ public class PlotProcess {
     }
 
     private void processStdOutLine(String s) {
-        String logLine = getTimestampString() + ": " + s;
-        if (s.startsWith("ID: ")) {
+        int oldPhase = phase;
+        int oldSubPhase = subPhase;
+        if (s.startsWith(BUCKET)) {
+            //most frequent line goes first
+            step = parseInt(s, BUCKET.length()) + stepAddition;
+        } else if (s.startsWith("ID: ")) {
             id = s.substring(4);
             log("ID=" + getId());
         } else if (s.startsWith(STARTING_PHASE)) {
-            phase = Integer.parseInt(s.substring(STARTING_PHASE.length(), STARTING_PHASE.length() + 1));
+            phase = parseInt(s, STARTING_PHASE.length());
             subPhase = 0;
             step = 0;
         } else if (s.startsWith(COMPUTING_TABLE)) {
-            subPhase = Integer.parseInt(s.substring(COMPUTING_TABLE.length()));
+            subPhase = parseInt(s, COMPUTING_TABLE.length());
             step = 0;
         } else if (s.startsWith(BACKPROPAGATING_ON_TABLE)) {
-            subPhase = 8 - Integer.parseInt(s.substring(BACKPROPAGATING_ON_TABLE.length()));
+            subPhase = 8 - parseInt(s, BACKPROPAGATING_ON_TABLE.length());
             step = 0;
         } else if (s.startsWith(COMPRESSING_TABLES)) {
-            subPhase = Integer.parseInt(s.substring(COMPRESSING_TABLES.length(), COMPRESSING_TABLES.length() + 1));
+            subPhase = parseInt(s, COMPRESSING_TABLES.length());
             step = 0;
-        } else if (s.startsWith(BUCKET)) {
-            step = Integer.parseInt(s.split(" ")[1]) + stepAddition;
         } else if (s.startsWith(FIRST_COMPUTATION_PASS)) {
-            stepAddition = BUCKETS;
+            stepAddition = buckets;
         } else if (s.startsWith(SECOND_COMPUTATION_PASS)) {
             stepAddition = 0;
         }
-        if (logFile == null) {
+        if (phase != oldPhase || subPhase != oldSubPhase) {
+            onPhaseChange.accept(this);
+        }
+        lineBuilder.setLength(0);
+        appendTimestamp(lineBuilder).append(": ").append(s).append(System.lineSeparator());
+        if (logWriter == null) {
+            outputBuffer.append(lineBuilder);
             if (getId() != null) {
-                logFile = new File(logDir, getId() + ".log");
-                //log(getName() + " PlotProcess. Using log file: " + logFile.getAbsolutePath());
-                writeLog(outputBuffer.toString());
-                outputBuffer.setLength(0);
+                openLog(new File(logDir, getId() + ".log"));
             }
-        } else if (s.startsWith("Renamed final file ")) {
-            resultFileName = new File(s.split("\"")[3].replaceAll("\\\\\\\\", "\\\\")).getName();
-            log("Result file name: " + getResultFileName());
-            File finalLogFile = new File(logDir, getResultFileName() + ".log");
-            //log(getName() + " PlotProcess: Renaming log file: " + logFile.getAbsolutePath() + " ==> " + finalLogFile.getAbsolutePath());
-            logFile.renameTo(finalLogFile);
-            logFile = finalLogFile;
-        }
-        if (logFile == null) {
-            outputBuffer.append(logLine).append(System.lineSeparator());
         } else {
-            writeLog(logLine + System.lineSeparator());
+            writeLog(lineBuilder);
+            if (s.startsWith("Renamed final file ")) {
+                resultFileName = new File(s.split("\"")[3].replaceAll("\\\\\\\\", "\\\\")).getName();
+                log("Result file name: " + getResultFileName());
+                renameLog(new File(logDir, getResultFileName() + ".log"));
+            }
+        }
+    }
+
+    /**
+     * Parse unsigned decimal number at the position, up to the first non-digit
+     * character.
+     */
+    private static int parseInt(String s, int from) {
+        int result = 0;
+        for (int i = from; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            result = result * 10 + (c - '0');
         }
+        return result;
     }
 
-    @SuppressWarnings({"CallToPrintStackTrace", "UseSpecificCatch"})
-    private void writeLog(String s) {
+    @SuppressWarnings("CallToPrintStackTrace")
+    private void openLog(File file) {
         try {
-            Files.write(logFile.toPath(), s.getBytes(StandardCharsets.UTF_8), WRITE, CREATE, APPEND);
-        } catch (Exception ex) {
+            logWriter = new PlotLogWriter(file);
+            writeLog(outputBuffer);
+            outputBuffer.setLength(0);
+        } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    private void renameLog(File file) {
+        logWriter.renameTo(file);
+    }
+
+    @SuppressWarnings("CallToPrintStackTrace")
+    private void writeLog(CharSequence s) {
+        try {
+            logWriter.append(s);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("CallToPrintStackTrace")
+    private void closeLog() {
+        if (logWriter != null) {
+            try {
+                logWriter.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
     private void log(String s) {
         LoggerUtil.log(getName() + " PlotProcess: " + s);
     }
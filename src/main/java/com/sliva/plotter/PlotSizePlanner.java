@@ -0,0 +1,229 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plans plot sizes (k) to fill destination volumes. Plots don't span
+ * volumes, so a volume filled with one plot size only strands the remainder
+ * of its free space divided by the plot size, up to a whole plot. Mixing plot
+ * sizes leaves smaller remainders, i.e. 230 GB fits two k32 plots (217.6 GB)
+ * or one k33 plot (224.2 GB).
+ *
+ * @author Sliva Co
+ */
+public final class PlotSizePlanner {
+
+    /**
+     * Space unit of the plan. Plot sizes are rounded up and free space down
+     * to whole units, so a plan always fits.
+     */
+    private static final long UNIT = IOUtils.MB;
+    /**
+     * Max number of residues of the smallest plot size. The unit is enlarged
+     * for sizes above k34, so the table stays bounded.
+     */
+    private static final int MAX_RESIDUES = 1 << 20;
+    private static final int MAX_CACHED_PLANS = 1024;
+    private static final Map<Long, Residues> RESIDUES = new ConcurrentHashMap<>();
+    private static final Map<List<Long>, int[]> PLANS = new ConcurrentHashMap<>();
+
+    private PlotSizePlanner() {
+    }
+
+    /**
+     * Get mix of plot sizes that uses most of the free space. Of the mixes
+     * with equal use the one with more small plots wins, as they are faster to
+     * plot. Plans are cached by free space, so volumes are re-planned only
+     * when their snapshot changes.
+     *
+     * @param freeSpace Free space of the volume
+     * @param minK Smallest plot size
+     * @param maxK Largest plot size
+     * @return Number of plots of each size, indexed by k - minK
+     */
+    public static int[] plan(long freeSpace, int minK, int maxK) {
+        List<Long> key = Arrays.asList(Math.max(0, freeSpace), (long) minK, (long) maxK);
+        int[] result = PLANS.get(key);
+        if (result == null) {
+            if (PLANS.size() >= MAX_CACHED_PLANS) {
+                PLANS.clear();
+            }
+            result = getResidues(minK, maxK).plan(Math.max(0, freeSpace));
+            PLANS.put(key, result);
+        }
+        return result.clone();
+    }
+
+    private static Residues getResidues(int minK, int maxK) {
+        return RESIDUES.computeIfAbsent((long) minK << 32 | maxK, key -> new Residues(minK, maxK));
+    }
+
+    /**
+     * Plan all volumes and take out plots that are already being made and
+     * have no space booked on a volume yet. Such a plot takes a planned slot
+     * of its size, or if there is none, the space of the volume with the most
+     * free space, which is then re-planned.
+     *
+     * @param freeSpaces Free space of each volume
+     * @param minK Smallest plot size
+     * @param maxK Largest plot size
+     * @param inFlight Sizes of plots being made
+     * @return Plans per volume, in the order of freeSpaces
+     */
+    public static List<int[]> planRemaining(Collection<Long> freeSpaces, int minK, int maxK, Collection<Integer> inFlight) {
+        List<int[]> plans = new ArrayList<>(freeSpaces.size());
+        long[] free = new long[freeSpaces.size()];
+        int i = 0;
+        for (long f : freeSpaces) {
+            free[i++] = f;
+            plans.add(plan(f, minK, maxK));
+        }
+        List<Integer> sorted = new ArrayList<>(inFlight);
+        sorted.sort(Collections.reverseOrder());
+        for (int k : sorted) {
+            int d = -1;
+            if (k >= minK && k <= maxK) {
+                for (int j = 0; j < plans.size() && d < 0; j++) {
+                    if (plans.get(j)[k - minK] > 0) {
+                        d = j;
+                    }
+                }
+            }
+            if (d >= 0) {
+                plans.get(d)[k - minK]--;
+                free[d] -= PlotSpaceUtil.getPlotSize(k);
+            } else if (free.length > 0) {
+                int largest = 0;
+                for (int j = 1; j < free.length; j++) {
+                    if (free[j] > free[largest]) {
+                        largest = j;
+                    }
+                }
+                free[largest] -= PlotSpaceUtil.getPlotSize(k);
+                plans.set(largest, plan(free[largest], minK, maxK));
+            }
+        }
+        return plans;
+    }
+
+    /**
+     * Choose size of the next plot: the size within the range with the most
+     * planned space left.
+     *
+     * @param plans Plans returned by
+     * {@link #planRemaining(Collection, int, int, Collection)}
+     * @param minK Smallest plot size the plans were made for
+     * @param fromK Smallest allowed plot size
+     * @param toK Largest allowed plot size
+     * @return Plot size or empty if no planned plot is left in the range
+     */
+    public static OptionalInt chooseK(Collection<int[]> plans, int minK, int fromK, int toK) {
+        OptionalInt result = OptionalInt.empty();
+        long bestSpace = 0;
+        for (int k = fromK; k <= toK; k++) {
+            long count = 0;
+            for (int[] plan : plans) {
+                count += k - minK >= 0 && k - minK < plan.length ? plan[k - minK] : 0;
+            }
+            long space = count * PlotSpaceUtil.getPlotSize(k);
+            if (space > bestSpace) {
+                bestSpace = space;
+                result = OptionalInt.of(k);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Shortest paths over residues of the smallest plot size. The smallest
+     * size fills the space left by larger plots, so the plan only has to pick
+     * the residue, modulo the smallest size, of the space taken by larger
+     * plots. For every residue the least space of larger plots giving it is
+     * found once per size range with the round robin algorithm, O(residues *
+     * sizes). A plan is then a single pass over the residues.
+     */
+    private static class Residues {
+
+        private final long unit;
+        private final long[] sizes;
+        private final long[] space;
+        private final byte[] lastSize;
+
+        private Residues(int minK, int maxK) {
+            sizes = new long[maxK - minK + 1];
+            long smallest = PlotSpaceUtil.getPlotSize(minK);
+            unit = Math.max(UNIT, (smallest + MAX_RESIDUES - 1) / MAX_RESIDUES);
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = (PlotSpaceUtil.getPlotSize(minK + i) + unit - 1) / unit;
+            }
+            int m = (int) sizes[0];
+            space = new long[m];
+            lastSize = new byte[m];
+            Arrays.fill(space, Long.MAX_VALUE);
+            space[0] = 0;
+            for (int i = 1; i < sizes.length; i++) {
+                int step = (int) (sizes[i] % m);
+                if (step == 0) {
+                    //takes the same space as a number of smallest plots
+                    continue;
+                }
+                int cycles = gcd(step, m);
+                for (int c = 0; c < cycles; c++) {
+                    //start at the cheapest residue of the cycle, then one round relaxes the whole cycle
+                    int start = c;
+                    for (int r = (c + step) % m; r != c; r = (r + step) % m) {
+                        if (space[r] < space[start]) {
+                            start = r;
+                        }
+                    }
+                    if (space[start] == Long.MAX_VALUE) {
+                        continue;
+                    }
+                    for (int r = start, n = 0; n < m / cycles; n++) {
+                        int next = (r + step) % m;
+                        if (space[r] + sizes[i] < space[next]) {
+                            space[next] = space[r] + sizes[i];
+                            lastSize[next] = (byte) i;
+                        }
+                        r = next;
+                    }
+                }
+            }
+        }
+
+        private int[] plan(long freeSpace) {
+            long free = freeSpace / unit;
+            int m = space.length;
+            int target = (int) (free % m);
+            int best = -1;
+            for (int left = 0; left < m && best < 0; left++) {
+                int r = Math.floorMod(target - left, m);
+                if (space[r] <= free) {
+                    best = r;
+                }
+            }
+            int[] result = new int[sizes.length];
+            for (int r = best; r != 0;) {
+                int i = lastSize[r];
+                result[i]++;
+                r = (int) Math.floorMod(r - sizes[i], (long) m);
+            }
+            result[0] = (int) ((free - space[best]) / m);
+            return result;
+        }
+
+        private static int gcd(int a, int b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import static com.sliva.plotter.IOUtils.GB;
+import java.util.OptionalInt;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Disk space used by plotting, by plot size (k).
+ *
+ * @author Sliva Co
+ */
+public final class PlotSpaceUtil {
+
+    /**
+     * Peak temp space of a plot with default buckets, as published for chia
+     * plotter: k32 239 GiB, k33 521 GiB, k34 1041 GiB.
+     */
+    private static final long[] PEAK_TEMP_SPACE = {239 * GB, 521 * GB, 1041 * GB};
+    /**
+     * Final plot file size, as published for chia plotter: k32 108.8 GB, k33
+     * 224.2 GB, k34 461.5 GB.
+     */
+    private static final long[] PLOT_SIZE = {108_800_000_000L, 224_200_000_000L, 461_500_000_000L};
+    private static final int MIN_TABLE_K = 32;
+    private static final int NUM_TABLES = 7;
+    private static final Pattern PLOT_FILE_NAME_K = Pattern.compile("^plot-k(\\d+)-");
+
+    private PlotSpaceUtil() {
+    }
+
+    /**
+     * Get peak temp space of a plot. Sizes outside the k32..k34 table are
+     * scaled from k32 by doubling per k.
+     *
+     * @param k Plot size
+     * @return Temp space in bytes
+     */
+    public static long getPeakTempSpace(int k) {
+        int i = k - MIN_TABLE_K;
+        if (i >= 0 && i < PEAK_TEMP_SPACE.length) {
+            return PEAK_TEMP_SPACE[i];
+        }
+        return i < 0 ? PEAK_TEMP_SPACE[0] >> -i : PEAK_TEMP_SPACE[PEAK_TEMP_SPACE.length - 1] << (i - PEAK_TEMP_SPACE.length + 1);
+    }
+
+    /**
+     * Get expected final plot file size. Sizes outside the k32..k34 table are
+     * scaled from the nearest table entry by the number of entries,
+     * (2k+1)*2^(k-1).
+     *
+     * @param k Plot size
+     * @return Plot file size in bytes
+     */
+    public static long getPlotSize(int k) {
+        int i = k - MIN_TABLE_K;
+        if (i >= 0 && i < PLOT_SIZE.length) {
+            return PLOT_SIZE[i];
+        }
+        int tableK = i < 0 ? MIN_TABLE_K : MIN_TABLE_K + PLOT_SIZE.length - 1;
+        return (long) (PLOT_SIZE[tableK - MIN_TABLE_K] * ((2d * k + 1) / (2 * tableK + 1)) * Math.pow(2, k - tableK));
+    }
+
+    /**
+     * Get plot size from plot file name, i.e.
+     * <code>plot-k32-2021-05-01-...plot</code>.
+     *
+     * @param fileName Plot file name
+     * @return Plot size or empty if the name doesn't follow the format
+     */
+    public static OptionalInt parsePlotSize(String fileName) {
+        Matcher m = PLOT_FILE_NAME_K.matcher(fileName);
+        return m.find() ? OptionalInt.of(Integer.parseInt(m.group(1))) : OptionalInt.empty();
+    }
+
+    /**
+     * Estimate temp space a running plot is still going to allocate on top of
+     * what it already holds. Phase 1 writes the tables one by one and reaches
+     * the peak by its end, later phases only shrink temp files. The profile is
+     * linear over phase 1 tables.
+     *
+     * @param k Plot size
+     * @param phase Current phase, 0 if not started yet
+     * @param table Current table in phase 1, 0 if not started yet
+     * @return Temp space in bytes
+     */
+    public static long getRemainingTempSpace(int k, int phase, int table) {
+        if (phase > 1) {
+            return 0;
+        }
+        int writtenTables = phase < 1 ? 0 : Math.max(0, Math.min(NUM_TABLES, table - 1));
+        return getPeakTempSpace(k) * (NUM_TABLES - writtenTables) / NUM_TABLES;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.TreeMap;
+
+/**
+ * Learns plot timing curves per queue and plot size and predicts plot
+ * completion and throughput. For every stage (phase and table) the time from
+ * plot start to the stage start is averaged over completed plots of the queue
+ * and size, as well as the total plot runtime. Timings are kept in a tab
+ * separated file:
+ * <pre>
+ * &lt;queue&gt; &lt;k&gt; &lt;stage&gt; &lt;millis from plot start&gt;
+ * </pre> where stage is <code>phase*100+table</code>, and stage
+ * <code>total</code> holds the runtime. Lines without the plot size, written
+ * by earlier versions, are loaded as k 0 and used for sizes of the queue
+ * that have no timings yet.
+ *
+ * @author Sliva Co
+ */
+public class PlotTimingPredictor {
+
+    private static final String TOTAL = "total";
+    private static final int UNKNOWN_K = 0;
+    private static final double ALPHA = 0.3;
+    private static final double MIN_SPEED_FACTOR = 0.5;
+    private static final double MAX_SPEED_FACTOR = 2;
+    private static final long DAY_MILLIS = Duration.ofDays(1).toMillis();
+
+    private final File file;
+    //keyed by queue name and plot size, tab separated
+    private final Map<String, QueueTiming> queueTimings = new HashMap<>();
+    private final Map<PlotProcess, TreeMap<Integer, Long>> runningStages = new HashMap<>();
+
+    public PlotTimingPredictor(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load timings saved by a previous run.
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    public synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            for (String s = in.readLine(); s != null; s = in.readLine()) {
+                String[] a = s.split("\t");
+                try {
+                    boolean hasK = a.length > 3;
+                    QueueTiming qt = getQueueTiming(a[0], hasK ? Integer.parseInt(a[1]) : UNKNOWN_K);
+                    String stage = a[hasK ? 2 : 1];
+                    double value = Double.parseDouble(a[hasK ? 3 : 2]);
+                    if (TOTAL.equals(stage)) {
+                        qt.total = value;
+                    } else {
+                        qt.stageOffsets.put(Integer.parseInt(stage), value);
+                    }
+                } catch (Exception ex) {
+                    log("Skipping invalid line: " + s);
+                }
+            }
+        } catch (IOException ex) {
+            log("ERROR: Cannot read " + file + ": " + ex.getClass() + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Record the stage the plot process has entered.
+     *
+     * @param pp Plot process
+     */
+    public synchronized void onPhaseChange(PlotProcess pp) {
+        runningStages.computeIfAbsent(pp, k -> new TreeMap<>())
+                .putIfAbsent(getStage(pp), System.currentTimeMillis() - pp.getCreateTimestamp());
+    }
+
+    /**
+     * Learn timings of the completed plot process and save them. Failed plots
+     * are only forgotten.
+     *
+     * @param queueName Queue name
+     * @param pp Plot process
+     * @param success true if the plot is complete
+     */
+    public synchronized void onComplete(String queueName, PlotProcess pp, boolean success) {
+        TreeMap<Integer, Long> stages = runningStages.remove(pp);
+        if (!success || stages == null) {
+            return;
+        }
+        QueueTiming qt = getQueueTiming(queueName, pp.getPlotSize());
+        stages.forEach((stage, offset) -> qt.stageOffsets.merge(stage, (double) offset, PlotTimingPredictor::average));
+        qt.total = qt.total == 0 ? System.currentTimeMillis() - pp.getCreateTimestamp() : average(qt.total, System.currentTimeMillis() - pp.getCreateTimestamp());
+        save();
+    }
+
+    /**
+     * Predict time left to complete the plot. The learned curve is scaled by
+     * how fast the plot reached its current stage compared to the average.
+     *
+     * @param queueName Queue name
+     * @param pp Plot process
+     * @return Optional of remaining duration, empty if the queue has no
+     * history or the current stage is unknown
+     */
+    public synchronized Optional<Duration> getRemaining(String queueName, PlotProcess pp) {
+        QueueTiming qt = findQueueTiming(queueName, pp.getPlotSize());
+        TreeMap<Integer, Long> stages = runningStages.get(pp);
+        if (qt == null || qt.total == 0 || stages == null || stages.isEmpty()) {
+            return Optional.empty();
+        }
+        Map.Entry<Integer, Long> current = stages.lastEntry();
+        Double expectedOffset = qt.stageOffsets.get(current.getKey());
+        if (expectedOffset == null) {
+            return Optional.empty();
+        }
+        double speedFactor = expectedOffset <= 0 ? 1 : Math.max(MIN_SPEED_FACTOR, Math.min(MAX_SPEED_FACTOR, current.getValue() / expectedOffset));
+        long elapsed = System.currentTimeMillis() - pp.getCreateTimestamp();
+        long remaining = (long) (qt.total * speedFactor) - elapsed;
+        return Optional.of(Duration.ofMillis(Math.max(0, remaining)));
+    }
+
+    /**
+     * Predict throughput of the queue.
+     *
+     * @param queueName Queue name
+     * @param k Plot size
+     * @param parallel Number of queue slots
+     * @param pipelinePhase Phase the next plot is started at, if pipelined
+     * @return Optional plots per day, empty if the queue has no history
+     */
+    public synchronized OptionalDouble getPlotsPerDay(String queueName, int k, int parallel, OptionalInt pipelinePhase) {
+        QueueTiming qt = findQueueTiming(queueName, k);
+        if (qt == null || qt.total == 0) {
+            return OptionalDouble.empty();
+        }
+        double cycle = qt.total;
+        if (pipelinePhase.isPresent()) {
+            //slot cycle ends when the next plot is started
+            Map.Entry<Integer, Double> e = qt.stageOffsets.ceilingEntry(pipelinePhase.getAsInt() * 100);
+            if (e != null && e.getValue() > 0) {
+                cycle = e.getValue();
+            }
+        }
+        return OptionalDouble.of(parallel * DAY_MILLIS / cycle);
+    }
+
+    private QueueTiming getQueueTiming(String queueName, int k) {
+        return queueTimings.computeIfAbsent(queueName + '\t' + k, key -> new QueueTiming());
+    }
+
+    /**
+     * Get learned timing of the plot size, or of unknown size if the queue
+     * has none for the plot size yet.
+     */
+    private QueueTiming findQueueTiming(String queueName, int k) {
+        QueueTiming qt = queueTimings.get(queueName + '\t' + k);
+        return qt != null && qt.total != 0 ? qt : queueTimings.get(queueName + '\t' + UNKNOWN_K);
+    }
+
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        queueTimings.forEach((key, qt) -> {
+            qt.stageOffsets.forEach((stage, offset) -> sb.append(key).append('\t').append(stage).append('\t').append(Math.round(offset)).append(System.lineSeparator()));
+            sb.append(key).append('\t').append(TOTAL).append('\t').append(Math.round(qt.total)).append(System.lineSeparator());
+        });
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            Files.write(tmpFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING);
+        } catch (IOException ex) {
+            log("ERROR: Cannot save " + file + ": " + ex.getClass() + " " + ex.getMessage());
+        }
+    }
+
+    private static int getStage(PlotProcess pp) {
+        return pp.getPhase() * 100 + pp.getSubPhase();
+    }
+
+    private static double average(double oldValue, double newValue) {
+        return oldValue + ALPHA * (newValue - oldValue);
+    }
+
+    private static void log(String s) {
+        LoggerUtil.log("PlotTimingPredictor: " + s);
+    }
+
+    private static class QueueTiming {
+
+        private final TreeMap<Integer, Double> stageOffsets = new TreeMap<>();
+        private double total;
+    }
+}
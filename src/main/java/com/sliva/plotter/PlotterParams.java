@@ -3,9 +3,24 @@
  */
 package com.sliva.plotter;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalInt;
 
 /**
+ * Queue settings. Configured by a line
+ * <code>&lt;name&gt;\t&lt;tmp&gt; -&gt; &lt;tmp2&gt;[\tkey=value]...</code>,
+ * i.e. <code>q1	E: -&gt; F:	threads=4	buckets=64</code>. Options
+ * <code>memory</code>, <code>threads</code>, <code>buckets</code> and
+ * <code>k</code> override global plotter parameters for the queue. Option
+ * <code>parallel</code> sets number of concurrent plots of the queue. Option
+ * <code>pipeline-phase</code> starts the next plot of a queue slot when the
+ * running one reaches that phase, option <code>pipeline-eta</code> when it is
+ * predicted to complete within that number of minutes. Option
+ * <code>k-max</code> lets the queue plot sizes from <code>k</code> up to
+ * that size, chosen to fill destination volumes.
  *
  * @author Sliva Co
  */
@@ -14,11 +29,33 @@ public class PlotterParams {
     private final String name;
     private final String tmpDrive;
     private final String tmp2Drive;
+    private final Map<String, String> options;
+    private final OptionalInt memory;
+    private final OptionalInt threads;
+    private final OptionalInt buckets;
+    private final OptionalInt plotSize;
+    private final OptionalInt maxPlotSize;
+    private final OptionalInt parallel;
+    private final OptionalInt pipelinePhase;
+    private final OptionalInt pipelineEta;
 
     public PlotterParams(String name, String tmpDrive, String tmp2Drive) {
+        this(name, tmpDrive, tmp2Drive, Collections.emptyMap());
+    }
+
+    public PlotterParams(String name, String tmpDrive, String tmp2Drive, Map<String, String> options) {
         this.name = name;
         this.tmpDrive = tmpDrive;
         this.tmp2Drive = tmp2Drive;
+        this.options = Collections.unmodifiableMap(new HashMap<>(options));
+        this.memory = getIntOption("memory");
+        this.threads = getIntOption("threads");
+        this.buckets = getIntOption("buckets");
+        this.plotSize = getIntOption("k");
+        this.maxPlotSize = getIntOption("k-max");
+        this.parallel = getIntOption("parallel");
+        this.pipelinePhase = getIntOption("pipeline-phase");
+        this.pipelineEta = getIntOption("pipeline-eta");
     }
 
     public String getName() {
@@ -33,12 +70,94 @@ public class PlotterParams {
         return tmp2Drive;
     }
 
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Plotter memory buffer size, MiB (<code>-b</code>).
+     *
+     * @return Optional memory size
+     */
+    public OptionalInt getMemory() {
+        return memory;
+    }
+
+    /**
+     * Number of plotter threads (<code>-r</code>).
+     *
+     * @return Optional number of threads
+     */
+    public OptionalInt getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of plotter buckets (<code>-u</code>).
+     *
+     * @return Optional number of buckets
+     */
+    public OptionalInt getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Plot size (<code>-k</code>).
+     *
+     * @return Optional plot size
+     */
+    public OptionalInt getPlotSize() {
+        return plotSize;
+    }
+
+    /**
+     * Largest plot size the queue may choose to fill destination volumes.
+     *
+     * @return Optional plot size
+     */
+    public OptionalInt getMaxPlotSize() {
+        return maxPlotSize;
+    }
+
+    /**
+     * Number of concurrent plots of the queue.
+     *
+     * @return Optional number of plots
+     */
+    public OptionalInt getParallel() {
+        return parallel;
+    }
+
+    /**
+     * Phase of the running plot to start the next plot at.
+     *
+     * @return Optional phase
+     */
+    public OptionalInt getPipelinePhase() {
+        return pipelinePhase;
+    }
+
+    /**
+     * Predicted minutes left of the running plot to start the next plot at.
+     *
+     * @return Optional minutes
+     */
+    public OptionalInt getPipelineEta() {
+        return pipelineEta;
+    }
+
+    private OptionalInt getIntOption(String key) {
+        String value = options.get(key);
+        return value == null ? OptionalInt.empty() : OptionalInt.of(Integer.parseInt(value.trim()));
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
         hash = 41 * hash + Objects.hashCode(this.name);
         hash = 41 * hash + Objects.hashCode(this.tmpDrive);
         hash = 41 * hash + Objects.hashCode(this.tmp2Drive);
+        hash = 41 * hash + Objects.hashCode(this.options);
         return hash;
     }
 
@@ -63,6 +182,9 @@ public class PlotterParams {
         if (!Objects.equals(this.tmp2Drive, other.tmp2Drive)) {
             return false;
         }
+        if (!Objects.equals(this.options, other.options)) {
+            return false;
+        }
         return true;
     }
 
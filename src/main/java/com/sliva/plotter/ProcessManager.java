@@ -3,25 +3,39 @@
  */
 package com.sliva.plotter;
 
+import static com.sliva.plotter.AsyncUtil.STARTERS;
 import static com.sliva.plotter.IOUtils.checkChangedAndUpdate;
+import static com.sliva.plotter.IOUtils.GB;
 import static com.sliva.plotter.IOUtils.fixVolumePathForWindows;
 import static com.sliva.plotter.IOUtils.isNetworkDriveCached;
 import static com.sliva.plotter.LoggerUtil.getTimestampString;
+import static com.sliva.plotter.PlotProcess.DEFAULT_BUCKETS;
+import static com.sliva.plotter.PlotProcess.DEFAULT_PLOT_SIZE;
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.WRITE;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -32,47 +46,175 @@ import java.util.stream.Stream;
 public class ProcessManager {
 
     private static final String VERSION = "1.0.13";
-    private static final long MIN_SPACE = 109_000_000_000L;
     private static final File STOP_FILE = new File("plotting-stop");
     private static final File PLOTTING_LOG_FILE = new File("plotting.log");
+    private static final File MOVE_JOURNAL_FILE = new File("move-journal.log");
+    private static final File PLOT_TIMINGS_FILE = new File("plot-timings.txt");
+    private static final double[] PLOT_DURATION_BUCKETS = {3600 * 2, 3600 * 4, 3600 * 6, 3600 * 8, 3600 * 10, 3600 * 12, 3600 * 16, 3600 * 24, 3600 * 36, 3600 * 48};
     private static final String DESTINATION_PATH = "Chia.plot";
     private static final String NO_WRITE_FILENAME = "no-write";
     private static final String NO_DIRECT_FILENAME = "no-direct";
     private static final String TMP_PATH = "Chia.tmp";
     private static final Duration CHECK_PERIOD = Duration.ofSeconds(5);
+    private static final Duration FALLBACK_CHECK_PERIOD = Duration.ofMinutes(1);
+    private static final Duration VOLUME_STATE_TTL = Duration.ofSeconds(30);
 
     private final File configFile;
     private final Config config = new Config();
-    private final AsyncMover asyncMover = new AsyncMover();
-    private final Set<File> inUseDirectDest = new HashSet<>();
-    private final Map<String, Optional<PlotProcess>> runningProcessQueues = new HashMap<>();
+    private final VolumeStateCache volumeStateCache = new VolumeStateCache(DESTINATION_PATH, NO_WRITE_FILENAME, NO_DIRECT_FILENAME, VOLUME_STATE_TTL);
+    private final SpaceReservationLedger spaceLedger = new SpaceReservationLedger(VOLUME_STATE_TTL);
+    private final AsyncMover asyncMover = new AsyncMover(config, new MoveJournal(MOVE_JOURNAL_FILE), volumeStateCache, spaceLedger, this::signalControl);
+    private final Map<File, SpaceReservationLedger.Reservation> directDestReservations = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Optional<PlotProcess>>> runningProcessQueues = new ConcurrentHashMap<>();
+    private final AdmissionController admissionController = new AdmissionController(config::getHostMemory, config::getHostThreads);
+    private final PlotTimingPredictor predictor = new PlotTimingPredictor(PLOT_TIMINGS_FILE);
+    private final Map<PlotProcess, String> pipelinedProcesses = new ConcurrentHashMap<>();
+    private final Map<File, Integer> pendingTmpPlots = new ConcurrentHashMap<>();
+    private final Object controlMonitor = new Object();
+    private final AtomicBoolean configChanged = new AtomicBoolean(true);
+    private long controlVersion;
+    private FileWatcher fileWatcher;
+    private MetricsServer metricsServer;
+    private final Map<String, Long> completedPlots = new TreeMap<>();
+    private final Map<String, Long> failedPlots = new TreeMap<>();
+    private final MetricsServer.Histogram plotDurations = new MetricsServer.Histogram(PLOT_DURATION_BUCKETS);
+    private volatile double controlLoopLatency;
 
     public ProcessManager(File configFile) {
         this.configFile = configFile;
     }
 
-    @SuppressWarnings("SleepWhileInLoop")
     public void run() throws InterruptedException {
         log(null, "STARTED");
         if (STOP_FILE.exists()) {
             //rename stop-file left from previous execution stop request
             STOP_FILE.renameTo(new File(STOP_FILE.getAbsolutePath() + "_N"));
         }
+        try {
+            fileWatcher = new FileWatcher(this::onFileChanged);
+            fileWatcher.register(configFile.getAbsoluteFile().getParentFile());
+            fileWatcher.register(STOP_FILE.getAbsoluteFile().getParentFile());
+        } catch (IOException ex) {
+            log(null, "File watcher is not available, falling back to polling: " + ex.getMessage());
+        }
+        predictor.load();
+        Set<File> cachedRootSet = new HashSet<>(Arrays.asList(File.listRoots()));
+        //network drive probes may start processes, so they run here and not on the scheduler thread
+        cachedRootSet.forEach(IOUtils::isNetworkDriveCached);
         Set<File> cachedDestSet = new HashSet<>(getAvailableDestinations());
         ConfigReader.readConfig(configFile, config);
+        configChanged.set(false);
+        updateMetricsServer();
         log(null, "Available destinations: " + getAvailableDestinations());
+        watchDestinations();
+        asyncMover.resumeMoves(f -> getMoveDestinationsList(PlotSpaceUtil.parsePlotSize(f.getName()).orElse(DEFAULT_PLOT_SIZE)));
         config.getQueueNames().forEach(this::createProcessQueue);
-        while (!runningProcessQueues.isEmpty() || asyncMover.countMovingProcesses() != 0) {
-            Thread.sleep(CHECK_PERIOD.toMillis());
-            if (ConfigReader.readConfig(configFile, config) || checkChangedAndUpdate(getAvailableDestinations(), cachedDestSet, this::onRootChanged)) {
+        long version = getControlVersion();
+        long lastFullCheck = System.currentTimeMillis();
+        while (!runningProcessQueues.isEmpty() || !pipelinedProcesses.isEmpty() || asyncMover.countMovingProcesses() != 0) {
+            version = awaitControlSignal(version, CHECK_PERIOD.toMillis());
+            long loopStart = System.nanoTime();
+            //volume list is cheap to get and new volumes are not signaled by the file watcher
+            checkChangedAndUpdate(Arrays.asList(File.listRoots()), cachedRootSet, (root, isNew) -> {
+                if (isNew) {
+                    isNetworkDriveCached(root);
+                }
+                volumeStateCache.invalidate();
+            });
+            updateDirectDestinationsLanded();
+            if (System.currentTimeMillis() - lastFullCheck >= FALLBACK_CHECK_PERIOD.toMillis()) {
+                //fallback for changes that are not signaled, i.e. on volumes that don't support watching
+                lastFullCheck = System.currentTimeMillis();
+                configChanged.set(true);
+            }
+            boolean isConfigChanged = configChanged.getAndSet(false) && ConfigReader.readConfig(configFile, config);
+            if (isConfigChanged || checkChangedAndUpdate(getAvailableDestinations(), cachedDestSet, this::onRootChanged)) {
                 //restart non-running queues on any change in either config file or destination volumes availability
-                config.getQueueNames().stream().filter(q -> !isQueueRunning(q))
+                config.getQueueNames().stream().filter(q -> !isQueueFull(q))
                         .forEach(this::recreateProcessQueue);
+                asyncMover.dispatchPendingMoves();
+                watchDestinations();
+                updateMetricsServer();
+            }
+            controlLoopLatency = (System.nanoTime() - loopStart) / 1e9;
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (fileWatcher != null) {
+            try {
+                fileWatcher.close();
+            } catch (IOException ex) {
+                log(null, "Error closing file watcher: " + ex.getMessage());
             }
         }
         log(null, "FINISHED");
     }
 
+    /**
+     * Handle change reported by the file watcher. Only changes of the config
+     * file, the stop file and the marker files wake up the control loop, so
+     * plot and log file writes in the watched directories are ignored.
+     */
+    private void onFileChanged(File file) {
+        String name = file.getName();
+        if (file.equals(configFile.getAbsoluteFile())) {
+            configChanged.set(true);
+            signalControl();
+        } else if (file.equals(STOP_FILE.getAbsoluteFile())) {
+            signalControl();
+        } else if (name.equals(NO_WRITE_FILENAME) || name.equals(NO_DIRECT_FILENAME) || name.equals(DESTINATION_PATH)) {
+            volumeStateCache.invalidate();
+            signalControl();
+        }
+    }
+
+    /**
+     * Watch destination directories and their volume roots for marker files.
+     */
+    private void watchDestinations() {
+        if (fileWatcher != null) {
+            volumeStateCache.getRoots().stream().filter(VolumeState::isWritable).forEach(vs -> {
+                fileWatcher.register(vs.getRoot());
+                fileWatcher.register(vs.getPath());
+            });
+        }
+    }
+
+    /**
+     * Wake up the control loop and queue delay waits.
+     */
+    private void signalControl() {
+        synchronized (controlMonitor) {
+            controlVersion++;
+            controlMonitor.notifyAll();
+        }
+        admissionController.wakeUp();
+    }
+
+    private long getControlVersion() {
+        synchronized (controlMonitor) {
+            return controlVersion;
+        }
+    }
+
+    /**
+     * Wait until control is signaled after given version or timeout elapses.
+     *
+     * @param version Last seen control version
+     * @param timeoutMillis Maximum time to wait
+     * @return Current control version
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long awaitControlSignal(long version, long timeoutMillis) throws InterruptedException {
+        synchronized (controlMonitor) {
+            for (long timeout = System.currentTimeMillis() + timeoutMillis; controlVersion == version && System.currentTimeMillis() < timeout;) {
+                controlMonitor.wait(Math.max(1, timeout - System.currentTimeMillis()));
+            }
+            return controlVersion;
+        }
+    }
+
     private void createProcessQueue(String queueName) {
         createProcessQueue(queueName, true);
     }
@@ -81,44 +223,60 @@ public class ProcessManager {
         createProcessQueue(queueName, false);
     }
 
+    /**
+     * Create queue or add missing slots to a running queue. Each slot runs its
+     * own sequence of plots. Slot starts are staggered by the queue delay, also
+     * within the queue.
+     */
     private void createProcessQueue(String queueName, boolean doDelay) {
         if (STOP_FILE.exists()) {
             return;
         }
-        int numOldRunningQueues;
-        synchronized (runningProcessQueues) {
-            if (runningProcessQueues.containsKey(queueName)) {
-                log(queueName, "Queue already exists - exiting");
-                return;
-            }
-            numOldRunningQueues = runningProcessQueues.size();
-            runningProcessQueues.put(queueName, Optional.empty());
-        }
-        log(queueName, "Creating new process queue");
-        CompletableFuture.runAsync(() -> {
-            Duration delay = config.getDelayStartQueue().multipliedBy(doDelay ? numOldRunningQueues : 0);
-            if (delayStartQueue(queueName, delay)) {
-                createProcess(queueName);
-            } else {
-                destroyProcessQueue(queueName);
+        int parallel = getParallel(queueName);
+        int numOldRunningSlots = runningProcessQueues.values().stream().mapToInt(Map::size).sum();
+        List<Integer> newSlots = new ArrayList<>();
+        runningProcessQueues.compute(queueName, (q, slots) -> {
+            Map<Integer, Optional<PlotProcess>> result = slots != null ? slots : new ConcurrentSkipListMap<>();
+            for (int slot = 0; slot < parallel; slot++) {
+                if (result.putIfAbsent(slot, Optional.empty()) == null) {
+                    newSlots.add(slot);
+                }
             }
+            return result;
         });
+        if (newSlots.isEmpty()) {
+            log(queueName, "Queue already exists - exiting");
+            return;
+        }
+        log(queueName, "Creating new process queue" + (parallel > 1 ? ", slots: " + newSlots : ""));
+        for (int i = 0; i < newSlots.size(); i++) {
+            int slot = newSlots.get(i);
+            int stagger = (doDelay ? numOldRunningSlots : 0) + i;
+            CompletableFuture.runAsync(() -> {
+                Duration delay = config.getDelayStartQueue().multipliedBy(stagger);
+                if (delayStartQueue(getProcessName(queueName, slot), getPlotSize(queueName), delay)) {
+                    createProcess(queueName, slot);
+                } else {
+                    destroyProcessSlot(queueName, slot);
+                }
+            }, STARTERS).exceptionally(ex -> onCreateProcessError(queueName, slot, ex));
+        }
     }
 
-    @SuppressWarnings("SleepWhileInLoop")
-    private boolean delayStartQueue(String queueName, Duration delay) {
+    private boolean delayStartQueue(String queueName, int k, Duration delay) {
         if (delay.toMillis() > 0) {
             log(queueName, "Delaying queue for " + delay);
             try {
+                long version = getControlVersion();
                 for (long timeout = System.currentTimeMillis() + delay.toMillis(); System.currentTimeMillis() < timeout;) {
                     if (STOP_FILE.exists()) {
                         log(queueName, "STOP file detected (" + STOP_FILE.getAbsolutePath() + "). Interrupting queue delay loop");
                         return false;
-                    } else if (!hasDestinationSpace()) {
+                    } else if (!hasDestinationSpace(k)) {
                         log(queueName, "No destination space left. Exiting queue \"" + queueName + "\"");
                         return false;
                     }
-                    Thread.sleep(Duration.ofSeconds(10).toMillis());
+                    version = awaitControlSignal(version, Math.min(FALLBACK_CHECK_PERIOD.toMillis(), timeout - System.currentTimeMillis()));
                 }
             } catch (InterruptedException ex) {
                 log(queueName, "Interrupted during delay sleep queue");
@@ -128,127 +286,426 @@ public class ProcessManager {
         return true;
     }
 
-    private void destroyProcessQueue(String queueName) {
-        synchronized (runningProcessQueues) {
-            runningProcessQueues.remove(queueName);
-        }
+    private void destroyProcessSlot(String queueName, int slot) {
+        runningProcessQueues.computeIfPresent(queueName, (q, slots) -> {
+            slots.remove(slot);
+            return slots.isEmpty() ? null : slots;
+        });
+        signalControl();
     }
 
-    private boolean isQueueRunning(String queueName) {
-        synchronized (runningProcessQueues) {
-            return runningProcessQueues.containsKey(queueName);
-        }
+    private boolean isQueueFull(String queueName) {
+        Map<Integer, Optional<PlotProcess>> slots = runningProcessQueues.get(queueName);
+        return slots != null && slots.size() >= getParallel(queueName);
     }
 
-    @SuppressWarnings("UseSpecificCatch")
-    private void createProcess(String queueName) {
+    private int getParallel(String queueName) {
+        return Optional.ofNullable(config.getPlotterParams(queueName)).map(PlotterParams::getParallel).orElse(OptionalInt.empty()).orElse(1);
+    }
+
+    private int getPlotSize(String queueName) {
+        return Optional.ofNullable(config.getPlotterParams(queueName)).map(PlotterParams::getPlotSize).orElse(OptionalInt.empty()).orElse(DEFAULT_PLOT_SIZE);
+    }
+
+    /**
+     * Name of the plot process of a queue slot. Also used as the process temp
+     * sub-directory name, so the first slot keeps the queue name.
+     */
+    private static String getProcessName(String queueName, int slot) {
+        return slot == 0 ? queueName : queueName + "_" + (slot + 1);
+    }
+
+    /**
+     * Start the next plot of the slot on the starters executor, as it waits
+     * for temp volume and host admission.
+     */
+    private void createProcessAsync(String queueName, int slot) {
+        CompletableFuture.runAsync(() -> createProcess(queueName, slot), STARTERS).exceptionally(ex -> onCreateProcessError(queueName, slot, ex));
+    }
+
+    private Void onCreateProcessError(String queueName, int slot, Throwable ex) {
+        log(queueName, "createProcess: ERROR: " + ex.getClass() + ": " + ex.getMessage());
+        destroyProcessSlot(queueName, slot);
+        return null;
+    }
+
+    private void createProcess(String queueName, int slot) {
+        String processName = getProcessName(queueName, slot);
         if (STOP_FILE.exists()) {
-            log(queueName, "STOP file detected (" + STOP_FILE.getAbsolutePath() + "). Exiting queue \"" + queueName + "\"");
-            destroyProcessQueue(queueName);
+            log(processName, "STOP file detected (" + STOP_FILE.getAbsolutePath() + "). Exiting queue \"" + queueName + "\"");
+            destroyProcessSlot(queueName, slot);
             return;
         }
-        if (!hasDestinationSpace()) {
-            log(queueName, "No destination space left. Exiting queue \"" + queueName + "\"");
-            destroyProcessQueue(queueName);
+        if (!hasDestinationSpace(getPlotSize(queueName))) {
+            log(processName, "No destination space left. Exiting queue \"" + queueName + "\"");
+            destroyProcessSlot(queueName, slot);
             return;
         }
         PlotterParams p = config.getPlotterParams(queueName);
         if (p == null) {
-            log(queueName, "Queue removed from config. Exiting queue \"" + queueName + "\"");
-            destroyProcessQueue(queueName);
+            log(processName, "Queue removed from config. Exiting queue \"" + queueName + "\"");
+            destroyProcessSlot(queueName, slot);
+            return;
+        }
+        if (slot >= p.getParallel().orElse(1)) {
+            log(processName, "Number of parallel plots reduced in config. Exiting queue slot \"" + getProcessName(queueName, slot) + "\"");
+            destroyProcessSlot(queueName, slot);
+            return;
+        }
+        log(processName, "Creating process: " + queueName + "\t" + p.getTmpDrive() + " -> " + p.getTmp2Drive());
+        File tmpVolume = new File(fixVolumePathForWindows(p.getTmpDrive()));
+        int k = choosePlotSize(processName, p, tmpVolume);
+        if (!awaitTmpVolumeAdmission(queueName, p, tmpVolume, k)) {
+            log(processName, "Stopped while waiting for temp volume. Exiting queue \"" + queueName + "\"");
+            destroyProcessSlot(queueName, slot);
             return;
         }
-        log(queueName, "Creating process: " + queueName + "\t" + p.getTmpDrive() + " -> " + p.getTmp2Drive());
+        try {
+            startProcess(queueName, slot, p, k);
+        } finally {
+            pendingTmpPlots.computeIfPresent(tmpVolume, (f, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    @SuppressWarnings("UseSpecificCatch")
+    private void startProcess(String queueName, int slot, PlotterParams p, int k) {
+        String processName = getFreeProcessName(getProcessName(queueName, slot));
+        //memory is set for the queue plot size, larger plots chosen by k-max need twice as much per k
+        int memory = p.getMemory().orElse(config.getMemory()) << Math.max(0, k - p.getPlotSize().orElse(DEFAULT_PLOT_SIZE));
+        int nThreads = p.getThreads().orElse(config.getnThreads());
+        AdmissionController.Ticket ticket;
+        try {
+            ticket = admissionController.acquire(processName, memory, nThreads, () -> STOP_FILE.exists() || config.getPlotterParams(queueName) == null);
+        } catch (InterruptedException ex) {
+            ticket = null;
+        }
+        if (ticket == null) {
+            log(processName, "Stopped while waiting for host resources. Exiting queue \"" + queueName + "\"");
+            destroyProcessSlot(queueName, slot);
+            return;
+        }
+        AdmissionController.Ticket admission = ticket;
+        File directDest = null;
         try {
             boolean isTmp2Dest = "dest".equals(p.getTmp2Drive());
             File tmpPath = new File(fixVolumePathForWindows(p.getTmpDrive()), TMP_PATH);
             File tmp2Path;
             if (isTmp2Dest) {
-                synchronized (inUseDirectDest) {
-                    Optional<File> otmp2Path = getDirectDestination();
-                    if (!otmp2Path.isPresent()) {
-                        log(queueName, "No available volumes for direct destination. All available destination volumes: " + getAvailableDestinations() + ", In-use by other processes destination volumes: " + inUseDirectDest + ". Exiting queue \"" + p.getName() + "\"");
-                        destroyProcessQueue(queueName);
-                        return;
-                    }
-                    tmp2Path = otmp2Path.get();
-                    log(queueName, "Reserving volume for direct destination: " + tmp2Path);
-                    inUseDirectDest.add(tmp2Path);
+                Optional<File> otmp2Path = reserveDirectDestination(processName, k);
+                if (!otmp2Path.isPresent()) {
+                    log(processName, "No available volumes for direct destination. All available destination volumes: " + getAvailableDestinations() + ", In-use by other processes destination volumes: " + directDestReservations.keySet() + ". Exiting queue \"" + p.getName() + "\"");
+                    admission.release();
+                    destroyProcessSlot(queueName, slot);
+                    return;
                 }
+                tmp2Path = otmp2Path.get();
+                directDest = tmp2Path;
+                log(processName, "Reserved volume for direct destination: " + tmp2Path);
             } else {
                 tmp2Path = new File(fixVolumePathForWindows(p.getTmp2Drive()), TMP_PATH);
             }
-            log(queueName, "Starting process \"" + queueName + "\" " + p.getTmpDrive() + " -> " + p.getTmp2Drive() + ", isTmp2Dest=" + isTmp2Dest + ", tmpPath=" + tmpPath + ", tmp2Path=" + tmp2Path);
-            PlotProcess plotProcess = new PlotProcess(queueName, tmpPath, tmp2Path, isTmp2Dest, config.getMemory(), config.getnThreads(), pp -> onCompleteProcess(pp, queueName));
-            synchronized (runningProcessQueues) {
-                runningProcessQueues.put(queueName, Optional.of(plotProcess));
-            }
+            log(processName, "Starting process \"" + processName + "\" " + p.getTmpDrive() + " -> " + p.getTmp2Drive() + ", isTmp2Dest=" + isTmp2Dest + ", tmpPath=" + tmpPath + ", tmp2Path=" + tmp2Path);
+            PlotProcess plotProcess = new PlotProcess(processName, tmpPath, tmp2Path, isTmp2Dest, memory, nThreads,
+                    p.getBuckets().orElse(DEFAULT_BUCKETS), k, pp -> onPhaseChange(pp, queueName, slot), pp -> {
+                admission.release();
+                onCompleteProcess(pp, queueName, slot);
+            });
+            runningProcessQueues.computeIfPresent(queueName, (q, slots) -> {
+                slots.put(slot, Optional.of(plotProcess));
+                return slots;
+            });
             plotProcess.startProcess();
         } catch (Exception ex) {
-            log(queueName, "createProcess: ERROR: " + ex.getClass() + ": " + ex.getMessage());
-            destroyProcessQueue(queueName);
+            log(processName, "createProcess: ERROR: " + ex.getClass() + ": " + ex.getMessage());
+            if (directDest != null) {
+                releaseDirectDestination(directDest);
+            }
+            admission.release();
+            destroyProcessSlot(queueName, slot);
+        }
+    }
+
+    /**
+     * Choose plot size of the next plot of the queue. Queues with
+     * <code>k-max</code> take the size with the most space left in the
+     * destination packing plan, from sizes whose peak temp space fits the
+     * temp volume.
+     */
+    private int choosePlotSize(String processName, PlotterParams p, File tmpVolume) {
+        int minK = p.getPlotSize().orElse(DEFAULT_PLOT_SIZE);
+        int maxK = p.getMaxPlotSize().orElse(minK);
+        long tmpTotalSpace = volumeStateCache.get(tmpVolume).getTotalSpace();
+        while (maxK > minK && tmpTotalSpace > 0 && PlotSpaceUtil.getPeakTempSpace(maxK) > tmpTotalSpace) {
+            maxK--;
+        }
+        if (maxK <= minK) {
+            return minK;
+        }
+        int k = PlotSizePlanner.chooseK(getDestinationPlans(), getMinPlotSize(), minK, maxK).orElse(minK);
+        log(processName, "Plot size chosen to fill destinations: k" + k);
+        return k;
+    }
+
+    /**
+     * Plan plot sizes for available destinations, taking out plots that are
+     * being made to temp volumes and moves waiting for a destination.
+     *
+     * @return Plans per destination, indexed by k - smallest plot size
+     */
+    private List<int[]> getDestinationPlans() {
+        List<Long> freeSpaces = getAvailableDestinationStates().map(this::getFreeSpace).collect(Collectors.toList());
+        List<Integer> inFlight = new ArrayList<>();
+        getRunningProcesses().stream().filter(pp -> !pp.isTmp2Dest()).forEach(pp -> inFlight.add(pp.getPlotSize()));
+        asyncMover.getPendingMovingProcesses().forEach(mp -> inFlight.add(PlotSpaceUtil.parsePlotSize(mp.getSrcFile().getName()).orElse(DEFAULT_PLOT_SIZE)));
+        return PlotSizePlanner.planRemaining(freeSpaces, getMinPlotSize(), getMaxPlotSize(), inFlight);
+    }
+
+    /**
+     * Check whether the packing plan of the free space has a plot of the
+     * size, so the plot put there keeps the volume on the plan.
+     */
+    private boolean isPlannedPlotSize(long freeSpace, int k) {
+        int minK = getMinPlotSize();
+        int maxK = getMaxPlotSize();
+        return k >= minK && k <= maxK && PlotSizePlanner.plan(freeSpace, minK, maxK)[k - minK] > 0;
+    }
+
+    /**
+     * Wait until the queue temp volume can take one more plot. The number of
+     * plots in phase 1 is limited by the volume <code>max-phase1</code>
+     * option, and temp space still to be allocated by running plots plus the
+     * peak of the new plot must fit into the volume free space. The wait is
+     * re-checked on plot phase changes.
+     *
+     * @return false if the queue is stopped or removed while waiting
+     */
+    private boolean awaitTmpVolumeAdmission(String queueName, PlotterParams p, File tmpVolume, int k) {
+        String lastReason = null;
+        long version = getControlVersion();
+        try {
+            for (;;) {
+                if (STOP_FILE.exists() || config.getPlotterParams(queueName) == null) {
+                    return false;
+                }
+                long usable = volumeStateCache.get(tmpVolume).getUsableSpace();
+                Collection<PlotProcess> running = getRunningProcesses().stream()
+                        .filter(pp -> tmpVolume.equals(pp.getTmpPath().getParentFile().getParentFile()))
+                        .collect(Collectors.toList());
+                int maxPhase1 = config.getVolumeParams(tmpVolume).map(VolumeParams::getMaxPhase1).orElse(OptionalInt.empty()).orElse(0);
+                String[] reason = new String[1];
+                //check and reservation are atomic per temp volume
+                pendingTmpPlots.compute(tmpVolume, (f, n) -> {
+                    //admitted, but not yet started plots count as starting phase 1 with the queue plot size
+                    int pending = n == null ? 0 : n;
+                    long inPhase1 = running.stream().filter(pp -> pp.getPhase() <= 1).count() + pending;
+                    long required = running.stream().mapToLong(pp -> PlotSpaceUtil.getRemainingTempSpace(pp.getPlotSize(), pp.getPhase(), pp.getSubPhase())).sum()
+                            + PlotSpaceUtil.getPeakTempSpace(k) * (pending + 1);
+                    if (maxPhase1 > 0 && inPhase1 >= maxPhase1) {
+                        reason[0] = "Reached max number of plots in phase 1 on " + tmpVolume + " (" + maxPhase1 + ")";
+                    } else if (running.size() + pending > 0 && required > usable) {
+                        //single plot is always started, as before, so the volume sizing stays the user choice
+                        reason[0] = "Not enough temp space on " + tmpVolume + ": required " + required / GB + " GB, available " + usable / GB + " GB";
+                    } else {
+                        return pending + 1;
+                    }
+                    return n;
+                });
+                if (reason[0] == null) {
+                    return true;
+                }
+                if (!reason[0].equals(lastReason)) {
+                    log(queueName, reason[0] + ". Waiting...");
+                    lastReason = reason[0];
+                }
+                version = awaitControlSignal(version, FALLBACK_CHECK_PERIOD.toMillis());
+            }
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+
+    private Collection<PlotProcess> getRunningProcesses() {
+        return getRunningProcessQueues().keySet();
+    }
+
+    /**
+     * Get running processes, including handed off ones.
+     *
+     * @return Map of process to its queue name
+     */
+    private Map<PlotProcess, String> getRunningProcessQueues() {
+        Map<PlotProcess, String> result = new LinkedHashMap<>();
+        runningProcessQueues.forEach((q, slots) -> slots.values().forEach(opp -> opp.ifPresent(pp -> result.put(pp, q))));
+        result.putAll(pipelinedProcesses);
+        result.keySet().removeIf(PlotProcess::isFinished);
+        return result;
+    }
+
+    /**
+     * Get process name not used by running processes. A slot may run a
+     * pipelined plot next to the one it was started after, and each needs own
+     * temp directories.
+     */
+    private String getFreeProcessName(String name) {
+        Set<String> inUse = getRunningProcesses().stream().map(PlotProcess::getName).collect(Collectors.toSet());
+        String result = name;
+        for (int i = 2; inUse.contains(result); i++) {
+            result = name + "-p" + i;
+        }
+        return result;
+    }
+
+    /**
+     * Start the next plot of the slot when the running one reaches the queue
+     * pipeline phase or is predicted to complete within the pipeline ETA. The
+     * running process is kept aside as handed off until it completes.
+     */
+    private void onPhaseChange(PlotProcess pp, String queueName, int slot) {
+        signalControl();
+        predictor.onPhaseChange(pp);
+        Optional<Duration> eta = predictor.getRemaining(queueName, pp);
+        if (pp.getSubPhase() == 0) {
+            log(queueName, "Process \"" + pp.getName() + "\" phase " + pp.getPhase() + eta.map(d -> ". ETA: " + d).orElse(""));
+        }
+        PlotterParams p = config.getPlotterParams(queueName);
+        OptionalInt pipelinePhase = p == null ? OptionalInt.empty() : p.getPipelinePhase();
+        OptionalInt pipelineEta = p == null ? OptionalInt.empty() : p.getPipelineEta();
+        boolean reachedPhase = pipelinePhase.isPresent() && pp.getPhase() >= pipelinePhase.getAsInt();
+        boolean reachedEta = pipelineEta.isPresent() && eta.isPresent() && eta.get().toMinutes() <= pipelineEta.getAsInt();
+        if ((reachedPhase || reachedEta) && pp.markHandedOff()) {
+            log(queueName, "Process \"" + pp.getName() + "\" reached phase " + pp.getPhase() + eta.map(d -> ", ETA: " + d).orElse("") + ". Starting next plot");
+            //added to pipelined before it leaves the slot, so it is always visible as running
+            pipelinedProcesses.put(pp, queueName);
+            runningProcessQueues.computeIfPresent(queueName, (q, slots) -> {
+                slots.computeIfPresent(slot, (k, v) -> v.filter(op -> op != pp));
+                return slots;
+            });
+            createProcessAsync(queueName, slot);
         }
     }
 
-    private void onCompleteProcess(PlotProcess pp, String queueName) {
+    private void onCompleteProcess(PlotProcess pp, String queueName, int slot) {
         try {
             long runtime = System.currentTimeMillis() - pp.getCreateTimestamp();
             log(queueName, "Process complete: \"" + pp.getName() + "\". Runtime: " + Duration.ofMillis(runtime));
             logPlottingStat(pp);
-            synchronized (runningProcessQueues) {
+            predictor.onComplete(queueName, pp, pp.getResultFileName() != null);
+            synchronized (completedPlots) {
+                (pp.getResultFileName() != null ? completedPlots : failedPlots).merge(queueName, 1L, Long::sum);
+            }
+            if (pp.getResultFileName() != null) {
+                plotDurations.observe(runtime / 1000d);
+            }
+            logThroughputForecast();
+            volumeStateCache.invalidate();
+            if (pp.isHandedOff()) {
+                pipelinedProcesses.remove(pp);
+            } else {
                 //process finished, but queue is still active
-                runningProcessQueues.put(queueName, Optional.empty());
+                runningProcessQueues.computeIfPresent(queueName, (q, slots) -> {
+                    slots.computeIfPresent(slot, (k, v) -> Optional.empty());
+                    return slots;
+                });
             }
             if (pp.isTmp2Dest()) {
                 //plotted directly on destination volume
-                synchronized (inUseDirectDest) {
-                    inUseDirectDest.remove(pp.getTmp2Path());
-                }
+                releaseDirectDestination(pp.getTmp2Path());
             } else {
                 //plotted to temp. Initiate move from tmp2 to destination volume
                 if (pp.getResultFileName() != null) {
                     boolean delayMove = pp.getTmp2Path().equals(pp.getTmpPath());
                     asyncMover.moveFileAcync(new File(pp.getTmp2Path(), pp.getResultFileName()), queueName,
-                            this::getMoveDestinationsList,
+                            () -> getMoveDestinationsList(pp.getPlotSize()),
                             delayMove ? config.getMoveDelay() : Duration.ZERO);
                 } else {
                     log(queueName, "onCompleteProcess: No result file");
                 }
             }
-            createProcess(queueName);
+            if (pp.isHandedOff()) {
+                //next plot of the slot is already running
+                signalControl();
+            } else {
+                createProcessAsync(queueName, slot);
+            }
         } catch (Exception ex) {
             log(queueName, "onCompleteProcess: ERROR: " + ex.getClass() + ": " + ex.getMessage());
-            destroyProcessQueue(queueName);
+            if (!pp.isHandedOff()) {
+                destroyProcessSlot(queueName, slot);
+            }
         }
     }
 
     /**
-     * Pick direct destination volume that is not already used, not a network
-     * shared volume, preferring one with the lowest fill ratio.
+     * Pick and reserve direct destination volume that is not already used, not
+     * a network shared volume, preferring one whose packing plan has a plot of
+     * the size, then one with the lowest fill ratio. The
+     * plot size is booked in the space ledger and the volume is taken by
+     * adding the booking to the in-use map, so concurrent callers never get
+     * the same volume.
      *
-     * @return Optional of destination File object
+     * @return Optional of reserved destination File object
      */
-    private Optional<File> getDirectDestination() {
-        synchronized (inUseDirectDest) {
-            return getAvailableDestinations().stream()
-                    .filter(f -> !inUseDirectDest.contains(f) && !IOUtils.isNetworkDriveCached(f) && !new File(f, NO_DIRECT_FILENAME).exists() && (f.getParentFile() == null || !new File(f.getParentFile(), NO_DIRECT_FILENAME).exists()))
-                    .sorted(Comparator.comparing(this::getFillRatio))
-                    .findFirst();
+    private Optional<File> reserveDirectDestination(String processName, int k) {
+        Map<VolumeState, Double> fillRatio = new HashMap<>();
+        getAvailableDestinationStates()
+                .filter(vs -> !directDestReservations.containsKey(vs.getPath()) && !vs.isNetwork() && !vs.isNoDirect())
+                .forEach(vs -> fillRatio.put(vs, getFillRatio(vs)));
+        Set<VolumeState> planned = fillRatio.keySet().stream().filter(vs -> isPlannedPlotSize(getFreeSpace(vs), k)).collect(Collectors.toSet());
+        List<VolumeState> candidates = fillRatio.keySet().stream()
+                .sorted(Comparator.comparing((VolumeState vs) -> !planned.contains(vs)).thenComparing(fillRatio::get))
+                .collect(Collectors.toList());
+        for (VolumeState vs : candidates) {
+            Optional<SpaceReservationLedger.Reservation> reservation = spaceLedger.tryReserve(processName, PlotSpaceUtil.getPlotSize(k), vs);
+            if (reservation.isPresent()) {
+                if (directDestReservations.putIfAbsent(vs.getPath(), reservation.get()) == null) {
+                    return Optional.of(vs.getPath());
+                }
+                reservation.get().release();
+            }
         }
+        return Optional.empty();
     }
 
     /**
-     * Get list of available destinations. List first destination that are not
-     * used by direct plotting and ones with the largest free space.
+     * Record size of the plot files direct plots have written so far, so their
+     * destination reservations shrink as the final file grows. Files of a plot
+     * are found by the plot ID in their names, which is known from the process
+     * output before the plotter writes to the destination.
+     */
+    private void updateDirectDestinationsLanded() {
+        getRunningProcesses().stream().filter(pp -> pp.isTmp2Dest() && pp.getId() != null).forEach(pp -> {
+            SpaceReservationLedger.Reservation reservation = directDestReservations.get(pp.getTmp2Path());
+            File[] files = pp.getTmp2Path().listFiles(f -> f.isFile() && f.getName().contains(pp.getId()));
+            if (reservation != null && files != null) {
+                reservation.setLanded(Stream.of(files).mapToLong(File::length).sum());
+            }
+        });
+    }
+
+    private void releaseDirectDestination(File tmp2Path) {
+        SpaceReservationLedger.Reservation reservation = directDestReservations.remove(tmp2Path);
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    /**
+     * Get list of available destinations for a plot of the size. List first
+     * destination that are not used by direct plotting, then ones whose
+     * packing plan has a plot of the size, then ones with the largest free
+     * space.
      *
      * @return Collection of destination File objects
      */
-    private Collection<File> getMoveDestinationsList() {
-        synchronized (inUseDirectDest) {
-            return getAvailableDestinations().stream()
-                    .sorted(Comparator.comparing((File f) -> inUseDirectDest.contains(f)).thenComparing(Comparator.comparingDouble(this::getFreeSpace).reversed()))
-                    .collect(Collectors.toList());
-        }
+    private Collection<File> getMoveDestinationsList(int k) {
+        Map<File, Long> freeSpace = new HashMap<>();
+        getAvailableDestinationStates().forEach(vs -> freeSpace.put(vs.getPath(), getFreeSpace(vs)));
+        Set<File> planned = freeSpace.keySet().stream().filter(f -> isPlannedPlotSize(freeSpace.get(f), k)).collect(Collectors.toSet());
+        return freeSpace.keySet().stream()
+                .sorted(Comparator.comparing((File f) -> directDestReservations.containsKey(f))
+                        .thenComparing((File f) -> !planned.contains(f))
+                        .thenComparing(Comparator.comparingLong(freeSpace::get).reversed()))
+                .collect(Collectors.toList());
     }
 
     @SuppressWarnings({"CallToPrintStackTrace", "UseSpecificCatch"})
@@ -264,45 +721,140 @@ public class ProcessManager {
         }
     }
 
+    /**
+     * Start, restart or stop metrics server according to the config.
+     */
+    private void updateMetricsServer() {
+        int port = config.getMetricsPort();
+        if (metricsServer != null && metricsServer.getPort() != port) {
+            metricsServer.close();
+            metricsServer = null;
+        }
+        if (metricsServer == null && port > 0) {
+            try {
+                metricsServer = new MetricsServer(port, this::writeMetrics);
+                log(null, "Metrics endpoint: http://localhost:" + port + "/metrics");
+            } catch (IOException ex) {
+                log(null, "Cannot start metrics server on port " + port + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void writeMetrics(MetricsServer.Writer w) {
+        Map<String, Integer> slots = new TreeMap<>();
+        runningProcessQueues.forEach((q, s) -> slots.put(q, s.size()));
+        w.gauge("plotter_queues_running", "Running queues", slots.size());
+        slots.forEach((q, n) -> w.gauge("plotter_queue_slots", "Running slots of the queue", n, "queue", q));
+        Map<PlotProcess, String> running = getRunningProcessQueues();
+        w.gauge("plotter_plots_running", "Running plot processes", running.size());
+        running.forEach((pp, q) -> w.gauge("plotter_plot_phase", "Current phase of the plot", pp.getPhase(), "queue", q, "process", pp.getName()));
+        running.forEach((pp, q) -> w.gauge("plotter_plot_subphase", "Current table of the plot phase", pp.getSubPhase(), "queue", q, "process", pp.getName()));
+        running.forEach((pp, q) -> w.gauge("plotter_plot_step", "Current bucket of the plot table", pp.getStep(), "queue", q, "process", pp.getName()));
+        running.forEach((pp, q) -> predictor.getRemaining(q, pp).ifPresent(d -> w.gauge("plotter_plot_eta_seconds", "Predicted time to plot completion", d.getSeconds(), "queue", q, "process", pp.getName())));
+        synchronized (completedPlots) {
+            completedPlots.forEach((q, n) -> w.counter("plotter_plots_completed_total", "Completed plots", n, "queue", q));
+            failedPlots.forEach((q, n) -> w.counter("plotter_plots_failed_total", "Plot processes finished without a result file", n, "queue", q));
+        }
+        w.histogram("plotter_plot_duration_seconds", "Runtime of completed plots", plotDurations);
+        w.gauge("plotter_forecast_plots_per_day", "Predicted plots per day of the host", getForecast().values().stream().mapToDouble(Double::doubleValue).sum());
+        List<VolumeState> destinations = getAvailableDestinationStates().collect(Collectors.toList());
+        destinations.forEach(vs -> w.gauge("plotter_destination_usable_bytes", "Usable space of the destination", vs.getUsableSpace(), "destination", vs.getPath().getAbsolutePath()));
+        destinations.forEach(vs -> w.gauge("plotter_destination_reserved_bytes", "Space reserved by direct plots and moves", spaceLedger.getReserved(vs), "destination", vs.getPath().getAbsolutePath()));
+        w.gauge("plotter_pending_reserved_bytes", "Space booked by moves waiting for a destination", spaceLedger.getPendingReserved());
+        w.gauge("plotter_control_loop_latency_seconds", "Duration of the last control loop pass", controlLoopLatency);
+        w.gauge("plotter_admission_memory_mib", "Memory committed by running plots", admissionController.getCommittedMemory());
+        w.gauge("plotter_admission_threads", "Threads committed by running plots", admissionController.getCommittedThreads());
+        w.gauge("plotter_admission_waiting", "Plots waiting for host resources", admissionController.getWaitingCount());
+        asyncMover.writeMetrics(w);
+        AsyncUtil.writeMetrics(w);
+    }
+
+    /**
+     * Log predicted plots per day of the host and of each temp volume, for
+     * queues with timing history.
+     */
+    private void logThroughputForecast() {
+        Map<String, Double> perTmpDrive = getForecast();
+        if (!perTmpDrive.isEmpty()) {
+            double host = perTmpDrive.values().stream().mapToDouble(Double::doubleValue).sum();
+            log(null, "Forecast: " + String.format("%.1f", host) + " plots/day. Per temp volume: "
+                    + perTmpDrive.entrySet().stream().map(e -> e.getKey() + "=" + String.format("%.1f", e.getValue())).collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * Predict plots per day of each temp volume.
+     *
+     * @return Map of temp drive to plots per day
+     */
+    private Map<String, Double> getForecast() {
+        Map<String, Double> perTmpDrive = new TreeMap<>();
+        for (String queueName : config.getQueueNames()) {
+            PlotterParams p = config.getPlotterParams(queueName);
+            if (p != null) {
+                predictor.getPlotsPerDay(queueName, getPlotSize(queueName), p.getParallel().orElse(1), p.getPipelinePhase())
+                        .ifPresent(rate -> perTmpDrive.merge(p.getTmpDrive(), rate, Double::sum));
+            }
+        }
+        return perTmpDrive;
+    }
+
     private void onRootChanged(File root, boolean isNew) {
         log(null, (isNew ? "Adding" : "Removing") + " destination volume: "
                 + root.getAbsolutePath()
-                + (isNew && isNetworkDriveCached(root) ? " (Network shared drive)" : "")
+                + (isNew && isNetworkDriveCached(root.getParentFile() != null ? root.getParentFile() : root) ? " (Network shared drive)" : "")
         );
     }
 
     private Collection<File> getAvailableDestinations() {
-        File[] listRoots = File.listRoots();
-        IOUtils.updateNetworkDriveCache(listRoots);
-        Collection<File> result = Stream.of(listRoots)
-                .filter(f -> !new File(f, NO_WRITE_FILENAME).exists())
-                .map(f -> new File(f, DESTINATION_PATH))
-                .filter(f -> f.exists() && f.isDirectory() && !new File(f, NO_WRITE_FILENAME).exists() && getFreeSpace(f) >= MIN_SPACE)
-                .collect(Collectors.toList());
-        return result;
+        return getAvailableDestinationStates().map(VolumeState::getPath).collect(Collectors.toList());
     }
 
-    private boolean hasDestinationSpace() {
-        return getAvailableDestinations().stream().map(f -> getFreeSpace(f) / MIN_SPACE).reduce(0L, Long::sum) > asyncMover.countMovingProcessesNoDestination();
+    private Stream<VolumeState> getAvailableDestinationStates() {
+        return volumeStateCache.getRoots().stream()
+                .filter(vs -> vs.isWritable() && getFreeSpace(vs) >= getMinPlotFileSize());
     }
 
-    private long getFreeSpace(File f) {
-        synchronized (inUseDirectDest) {
-            return f.getUsableSpace() - getSpaceReservedByDirectDestProcess(f) - getSpaceReservedByMovingProcess(f);
-        }
+    /**
+     * Check whether one more plot of the size fits on destinations after the
+     * moves waiting for a destination. Plots don't span volumes, so only whole
+     * plots are counted on each volume.
+     */
+    private boolean hasDestinationSpace(int k) {
+        long plotSize = PlotSpaceUtil.getPlotSize(k);
+        long placeable = getAvailableDestinationStates().mapToLong(vs -> getFreeSpace(vs) / plotSize * plotSize).sum();
+        return placeable - spaceLedger.getPendingReserved() >= plotSize;
     }
 
-    private long getSpaceReservedByDirectDestProcess(File f) {
-        return inUseDirectDest.contains(f) ? MIN_SPACE : 0;
+    /**
+     * Size of the smallest plot file produced by configured queues. Smaller
+     * free space is of no use to any of them.
+     */
+    private long getMinPlotFileSize() {
+        return PlotSpaceUtil.getPlotSize(getMinPlotSize());
+    }
+
+    private int getMinPlotSize() {
+        return config.getQueueNames().stream().mapToInt(this::getPlotSize).min().orElse(DEFAULT_PLOT_SIZE);
+    }
+
+    /**
+     * Largest plot size configured queues may produce, by <code>k</code> or
+     * <code>k-max</code>.
+     */
+    private int getMaxPlotSize() {
+        return config.getQueueNames().stream().mapToInt(q -> Math.max(getPlotSize(q),
+                Optional.ofNullable(config.getPlotterParams(q)).map(PlotterParams::getMaxPlotSize).orElse(OptionalInt.empty()).orElse(0)))
+                .max().orElse(DEFAULT_PLOT_SIZE);
     }
 
-    private long getSpaceReservedByMovingProcess(File f) {
-        return asyncMover.getMovingProcessByDestination(f).map(mp -> mp.getFileSize() - mp.getMovedBytes()).orElse(0L);
+    private long getFreeSpace(VolumeState vs) {
+        return vs.getUsableSpace() - spaceLedger.getReserved(vs);
     }
 
-    private double getFillRatio(File f) {
-        double total = f.getTotalSpace();
-        return total <= 0 ? 0.5 : ((total - getFreeSpace(f)) / total);
+    private double getFillRatio(VolumeState vs) {
+        double total = vs.getTotalSpace();
+        return total <= 0 ? 0.5 : ((total - getFreeSpace(vs)) / total);
     }
 
     private void log(String queue, String s) {
@@ -0,0 +1,68 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket byte rate limiter. The rate is read from the supplier on every
+ * call, so changes in the config file are applied to running moves. The
+ * bucket holds up to one second worth of tokens. Callers may take more tokens
+ * than available and then sleep until the debt is paid off, so concurrent
+ * callers share the rate.
+ *
+ * @author Sliva Co
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final LongSupplier bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * Create rate limiter.
+     *
+     * @param name Limiter name used for logging
+     * @param bytesPerSecond supplier of the current rate in bytes per second.
+     * Zero or negative value means unlimited
+     */
+    public RateLimiter(String name, LongSupplier bytesPerSecond) {
+        this.name = name;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Take tokens for transferred bytes, sleeping if the rate is exceeded.
+     *
+     * @param bytes Number of bytes
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long rate = bytesPerSecond.getAsLong();
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (rate <= 0) {
+                tokens = 0;
+                lastRefillNanos = now;
+                return;
+            }
+            tokens = Math.min(rate, tokens + (double) (now - lastRefillNanos) * rate / NANOS_PER_SECOND);
+            lastRefillNanos = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
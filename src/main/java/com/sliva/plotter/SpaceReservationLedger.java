@@ -0,0 +1,215 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Destination space booked by direct plots, pending moves and moves in
+ * progress. A reservation is booked with the expected file size and released
+ * step by step as bytes land on the volume.
+ * <p>
+ * Volume usable space comes from cached snapshots, so the reserved space is
+ * reconciled against the snapshot time: bytes landed after the snapshot was
+ * taken are not yet visible in its usable space and stay reserved.
+ *
+ * @author Sliva Co
+ */
+public class SpaceReservationLedger {
+
+    private static final long CHECKPOINT_PERIOD_MILLIS = 5_000;
+    private final long maxSnapshotAgeMillis;
+    private final Map<File, Set<Reservation>> volumes = new ConcurrentHashMap<>();
+    private final Set<Reservation> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create reservation ledger.
+     *
+     * @param maxSnapshotAge Maximum age of volume state snapshots the
+     * reservations are reconciled against
+     */
+    public SpaceReservationLedger(Duration maxSnapshotAge) {
+        this.maxSnapshotAgeMillis = maxSnapshotAge.toMillis();
+    }
+
+    /**
+     * Book space not yet assigned to a volume, i.e. for a move waiting for a
+     * destination.
+     *
+     * @param name Reservation name used in logs
+     * @param bytes Expected size
+     * @return Reservation
+     */
+    public Reservation reservePending(String name, long bytes) {
+        Reservation r = new Reservation(name, null, bytes);
+        pending.add(r);
+        return r;
+    }
+
+    /**
+     * Book space on the volume if it is free. The check and the booking are
+     * atomic for the volume.
+     *
+     * @param name Reservation name used in logs
+     * @param bytes Expected size
+     * @param vs Volume state snapshot
+     * @return Reservation or empty if the volume has not enough free space
+     */
+    public Optional<Reservation> tryReserve(String name, long bytes, VolumeState vs) {
+        Reservation r = new Reservation(name, vs.getPath(), bytes);
+        boolean[] reserved = new boolean[1];
+        volumes.compute(vs.getPath(), (f, set) -> {
+            Set<Reservation> result = set != null ? set : ConcurrentHashMap.newKeySet();
+            if (vs.getUsableSpace() - getReserved(result, vs.getTimestamp()) >= bytes) {
+                result.add(r);
+                reserved[0] = true;
+            }
+            return result.isEmpty() ? null : result;
+        });
+        return reserved[0] ? Optional.of(r) : Optional.empty();
+    }
+
+    /**
+     * Get space still reserved on the volume and not reflected in the usable
+     * space of its snapshot.
+     *
+     * @param vs Volume state snapshot
+     * @return Reserved bytes
+     */
+    public long getReserved(VolumeState vs) {
+        return getReserved(volumes.getOrDefault(vs.getPath(), Collections.emptySet()), vs.getTimestamp());
+    }
+
+    /**
+     * @return Bytes booked by reservations not assigned to a volume
+     */
+    public long getPendingReserved() {
+        long result = 0;
+        for (Reservation r : pending) {
+            result += r.getRemaining();
+        }
+        return result;
+    }
+
+    private static long getReserved(Set<Reservation> reservations, long snapshotTimestamp) {
+        long result = 0;
+        for (Reservation r : reservations) {
+            result += r.getBytes() - r.getLandedAsOf(snapshotTimestamp);
+        }
+        return result;
+    }
+
+    private void release(Reservation r) {
+        if (r.volume == null) {
+            pending.remove(r);
+        } else {
+            volumes.computeIfPresent(r.volume, (f, set) -> set.remove(r) && set.isEmpty() ? null : set);
+        }
+    }
+
+    /**
+     * Space booked for one file. Landed bytes are recorded by a single
+     * writer, the thread that writes the file.
+     */
+    public class Reservation {
+
+        private final String name;
+        private final File volume;
+        private final long bytes;
+        private volatile long landed;
+        private volatile Checkpoint checkpoint;
+
+        private Reservation(String name, File volume, long bytes) {
+            this.name = name;
+            this.volume = volume;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Optional<File> getVolume() {
+            return Optional.ofNullable(volume);
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getRemaining() {
+            return bytes - landed;
+        }
+
+        /**
+         * Record bytes written to the volume so far.
+         *
+         * @param landed Written bytes
+         */
+        public void setLanded(long landed) {
+            long now = System.currentTimeMillis();
+            this.landed = Math.min(bytes, landed);
+            Checkpoint last = checkpoint;
+            if (last == null || now - last.timestamp >= CHECKPOINT_PERIOD_MILLIS) {
+                checkpoint = new Checkpoint(now, this.landed, last == null ? null : last.truncate(now - maxSnapshotAgeMillis));
+            }
+        }
+
+        /**
+         * Release the reservation. To be called after the file is complete or
+         * removed.
+         */
+        public void release() {
+            SpaceReservationLedger.this.release(this);
+        }
+
+        /**
+         * Get bytes landed by the time. Recorded with checkpoint granularity,
+         * so the result is never above the actual value.
+         */
+        private long getLandedAsOf(long timestamp) {
+            for (Checkpoint c = checkpoint; c != null; c = c.previous) {
+                if (c.timestamp <= timestamp) {
+                    return c.landed;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (bytes - landed) / IOUtils.GB + "/" + bytes / IOUtils.GB + " GB";
+        }
+    }
+
+    /**
+     * Immutable list of landed bytes samples, the newest first.
+     */
+    private static class Checkpoint {
+
+        private final long timestamp;
+        private final long landed;
+        private final Checkpoint previous;
+
+        private Checkpoint(long timestamp, long landed, Checkpoint previous) {
+            this.timestamp = timestamp;
+            this.landed = landed;
+            this.previous = previous;
+        }
+
+        /**
+         * Copy of the list without samples that are not needed to answer
+         * queries for timestamps from the given one on.
+         */
+        private Checkpoint truncate(long minTimestamp) {
+            return new Checkpoint(timestamp, landed, timestamp <= minTimestamp || previous == null ? null : previous.truncate(minTimestamp));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalInt;
+
+/**
+ * Per-volume settings. Configured by a line
+ * <code>volume=&lt;path&gt;[\tkey=value]...</code>, i.e.
+ * <code>volume=E	move-streams=4	write-rate=150</code>. Applied to the volume
+ * used as a move destination or as a move source, or as a plotting temp
+ * volume. Rates are in MB/s.
+ *
+ * @author Sliva Co
+ */
+public class VolumeParams {
+
+    private final String volume;
+    private final Map<String, String> options;
+    private final OptionalInt moveStreams;
+    private final OptionalInt readRate;
+    private final OptionalInt writeRate;
+    private final OptionalInt maxReadMoves;
+    private final OptionalInt maxWriteMoves;
+    private final OptionalInt maxPhase1;
+
+    public VolumeParams(String volume, Map<String, String> options) {
+        this.volume = volume;
+        this.options = Collections.unmodifiableMap(new HashMap<>(options));
+        this.moveStreams = getIntOption("move-streams");
+        this.readRate = getIntOption("read-rate");
+        this.writeRate = getIntOption("write-rate");
+        this.maxReadMoves = getIntOption("max-read-moves");
+        this.maxWriteMoves = getIntOption("max-write-moves");
+        this.maxPhase1 = getIntOption("max-phase1");
+    }
+
+    public String getVolume() {
+        return volume;
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Number of parallel copy streams when moving a file to this volume.
+     *
+     * @return Optional number of streams
+     */
+    public OptionalInt getMoveStreams() {
+        return moveStreams;
+    }
+
+    /**
+     * Max rate of moves reading from this volume, MB/s.
+     *
+     * @return Optional rate
+     */
+    public OptionalInt getReadRate() {
+        return readRate;
+    }
+
+    /**
+     * Max rate of moves writing to this volume, MB/s.
+     *
+     * @return Optional rate
+     */
+    public OptionalInt getWriteRate() {
+        return writeRate;
+    }
+
+    /**
+     * Max number of concurrent moves reading from this volume.
+     *
+     * @return Optional number of moves
+     */
+    public OptionalInt getMaxReadMoves() {
+        return maxReadMoves;
+    }
+
+    /**
+     * Max number of concurrent moves writing to this volume.
+     *
+     * @return Optional number of moves
+     */
+    public OptionalInt getMaxWriteMoves() {
+        return maxWriteMoves;
+    }
+
+    /**
+     * Max number of plots in phase 1 using this volume as temp volume.
+     *
+     * @return Optional number of plots
+     */
+    public OptionalInt getMaxPhase1() {
+        return maxPhase1;
+    }
+
+    private OptionalInt getIntOption(String key) {
+        String value = options.get(key);
+        return value == null ? OptionalInt.empty() : OptionalInt.of(Integer.parseInt(value.trim()));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 53 * hash + Objects.hashCode(this.volume);
+        hash = 53 * hash + Objects.hashCode(this.options);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final VolumeParams other = (VolumeParams) obj;
+        if (!Objects.equals(this.volume, other.volume)) {
+            return false;
+        }
+        if (!Objects.equals(this.options, other.options)) {
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.File;
+
+/**
+ * Immutable snapshot of a volume state taken by {@link VolumeStateCache}.
+ * Getters do not touch the file system.
+ *
+ * @author Sliva Co
+ */
+public class VolumeState {
+
+    private final File root;
+    private final File path;
+    private final boolean directory;
+    private final boolean noWrite;
+    private final boolean noDirect;
+    private final boolean network;
+    private final long totalSpace;
+    private final long usableSpace;
+    private final long timestamp;
+
+    public VolumeState(File root, File path, boolean directory, boolean noWrite, boolean noDirect, boolean network, long totalSpace, long usableSpace) {
+        this.root = root;
+        this.path = path;
+        this.directory = directory;
+        this.noWrite = noWrite;
+        this.noDirect = noDirect;
+        this.network = network;
+        this.totalSpace = totalSpace;
+        this.usableSpace = usableSpace;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return Directory on the volume the state was taken for, i.e. the
+     * destination directory
+     */
+    public File getPath() {
+        return path;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isNoWrite() {
+        return noWrite;
+    }
+
+    public boolean isNoDirect() {
+        return noDirect;
+    }
+
+    public boolean isNetwork() {
+        return network;
+    }
+
+    public long getTotalSpace() {
+        return totalSpace;
+    }
+
+    public long getUsableSpace() {
+        return usableSpace;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Volume can accept new plot files.
+     *
+     * @return true if the path is an existing directory without no-write
+     * marker
+     */
+    public boolean isWritable() {
+        return directory && !noWrite;
+    }
+
+    /**
+     * @return Used space ratio of the volume, 0 if total space is unknown
+     */
+    public double getFillRatio() {
+        return totalSpace <= 0 ? 0 : (double) (totalSpace - usableSpace) / totalSpace;
+    }
+
+    @Override
+    public String toString() {
+        return "VolumeState{" + "path=" + path + ", directory=" + directory + ", noWrite=" + noWrite + ", noDirect=" + noDirect + ", network=" + network + ", totalSpace=" + totalSpace + ", usableSpace=" + usableSpace + '}';
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE.
+ */
+package com.sliva.plotter;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of volume states. The file system is queried once per TTL or after
+ * {@link #invalidate()} is called on events that change free space (plot
+ * finished, move finished), instead of on every decision and every comparator
+ * call. No lock is held while querying the file system: callers that find the
+ * state expired read it themselves and publish the result. Network drives are
+ * not probed here, as the cache is read on the scheduler thread: roots that
+ * have not been probed yet are taken as network drives.
+ *
+ * @author Sliva Co
+ */
+public class VolumeStateCache {
+
+    private final String destinationPath;
+    private final String noWriteFilename;
+    private final String noDirectFilename;
+    private final Duration ttl;
+    private final Map<File, Entry<VolumeState>> volumes = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Entry<List<VolumeState>> roots = new Entry<>(Collections.emptyList(), -1, 0);
+
+    /**
+     * Create volume state cache.
+     *
+     * @param destinationPath Name of destination directory in the volume root
+     * @param noWriteFilename Name of marker file disabling writes to the volume
+     * @param noDirectFilename Name of marker file disabling direct plotting to
+     * the volume
+     * @param ttl Maximum age of the cached state
+     */
+    public VolumeStateCache(String destinationPath, String noWriteFilename, String noDirectFilename, Duration ttl) {
+        this.destinationPath = destinationPath;
+        this.noWriteFilename = noWriteFilename;
+        this.noDirectFilename = noDirectFilename;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get states of destination directories of all file system roots.
+     *
+     * @return List of root volume states
+     */
+    public List<VolumeState> getRoots() {
+        Entry<List<VolumeState>> entry = roots;
+        if (isExpired(entry)) {
+            long gen = generation.get();
+            File[] listRoots = File.listRoots();
+            IOUtils.updateNetworkDriveCache(listRoots);
+            List<VolumeState> result = new ArrayList<>(listRoots.length);
+            for (File root : listRoots) {
+                result.add(readRootState(root));
+            }
+            entry = new Entry<>(Collections.unmodifiableList(result), gen, System.currentTimeMillis());
+            roots = entry;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Get state of arbitrary volume, i.e. temp volume.
+     *
+     * @param volume Volume path
+     * @return Volume state
+     */
+    public VolumeState get(File volume) {
+        Entry<VolumeState> entry = volumes.get(volume);
+        if (entry == null || isExpired(entry)) {
+            long gen = generation.get();
+            VolumeState state = new VolumeState(volume, volume, volume.isDirectory(), false, false, false, volume.getTotalSpace(), volume.getUsableSpace());
+            entry = new Entry<>(state, gen, state.getTimestamp());
+            volumes.put(volume, entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Drop cached states so the next call reads actual values. States being
+     * read concurrently are dropped as well.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    private VolumeState readRootState(File root) {
+        File path = new File(root, destinationPath);
+        if (new File(root, noWriteFilename).exists() || !path.isDirectory()) {
+            //skip other checks as the volume is not usable as destination
+            return new VolumeState(root, path, false, true, true, false, 0, 0);
+        }
+        boolean noWrite = new File(path, noWriteFilename).exists();
+        boolean noDirect = new File(root, noDirectFilename).exists() || new File(path, noDirectFilename).exists();
+        return new VolumeState(root, path, true, noWrite, noDirect, IOUtils.getNetworkDriveCached(root).orElse(true), path.getTotalSpace(), path.getUsableSpace());
+    }
+
+    private boolean isExpired(Entry<?> entry) {
+        return entry.generation != generation.get() || System.currentTimeMillis() - entry.timestamp >= ttl.toMillis();
+    }
+
+    /**
+     * Cached value with the invalidation generation it was read in.
+     */
+    private static class Entry<T> {
+
+        private final T value;
+        private final long generation;
+        private final long timestamp;
+
+        private Entry(T value, long generation, long timestamp) {
+            this.value = value;
+            this.generation = generation;
+            this.timestamp = timestamp;
+        }
+    }
+}